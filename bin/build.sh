@@ -0,0 +1,22 @@
+#!/bin/sh
+# compiles jlox into out/jlox.jar, then does a training run to dump every class it loaded into an AppCDS archive
+# (out/jlox.jsa), which bin/jlox picks up so later launches map the classes in instead of loading and verifying them
+set -e
+
+root="$(cd "$(dirname "$0")/.." && pwd)"
+out="$root/out"
+lib="$root/lib/commons-lang3-3.11.jar"
+
+rm -rf "$out/classes"
+mkdir -p "$out/classes"
+javac -d "$out/classes" -cp "$lib" $(find "$root/src" -name '*.java')
+jar --create --file "$out/jlox.jar" --main-class com.mlewicki12.lox.Lox -C "$out/classes" .
+
+# appcds only archives classes that come from jars, so the training run has to use the jar
+training="$out/training.lox"
+printf '"a" + "b" == "ab" ? -(1 + 2 * 3 / 4) >= 0 : !nil != (2 < 3), 1 <= 2 > false' > "$training"
+rm -f "$out/jlox.jsa"
+java -XX:ArchiveClassesAtExit="$out/jlox.jsa" -Djlox.cache=false \
+     -cp "$out/jlox.jar:$lib" com.mlewicki12.lox.Lox "$training" > /dev/null
+
+echo "built $out/jlox.jar and $out/jlox.jsa"
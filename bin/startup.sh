@@ -0,0 +1,32 @@
+#!/bin/sh
+# startup benchmark, time to first output for a one line script, with and without the cds archive
+# usage: bin/startup.sh [runs]
+set -e
+
+root="$(cd "$(dirname "$0")/.." && pwd)"
+out="$root/out"
+cp="$out/jlox.jar:$root/lib/commons-lang3-3.11.jar"
+runs="${1:-20}"
+
+script="$out/startup.lox"
+printf '1+1' > "$script"
+
+bench() {
+    name="$1"; shift
+    start=$(date +%s%N)
+    i=0
+    while [ $i -lt "$runs" ]; do
+        java "$@" -Djlox.cache=false -cp "$cp" com.mlewicki12.lox.Lox "$script" > /dev/null
+        i=$((i + 1))
+    done
+    end=$(date +%s%N)
+    echo "$name: $(( (end - start) / runs / 1000000 ))ms per run"
+}
+
+bench "default" -Xshare:auto
+bench "tiered c1" -XX:TieredStopAtLevel=1
+if [ -f "$out/jlox.jsa" ]; then
+    bench "appcds" -XX:SharedArchiveFile="$out/jlox.jsa" -XX:TieredStopAtLevel=1
+else
+    echo "no archive, run bin/build.sh first"
+fi
@@ -1,48 +1,220 @@
 
 package com.mlewicki12.lox;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * prints trees as rpn or parenthesised text, or dumps them as json lines for diffing
+ * nothing recurses per node: the text forms walk the tree with their own stack and everything is written into one
+ * buffer that's handed to the output whenever it fills, so a million node tree is one pass with no string built per
+ * subtree, and it doesn't matter how deep it goes
+ * the visits only give a node's label (or the whole text of a leaf), its children come from HashConser.children
+ */
 public class AstPrinter implements Expr.Visitor<String> {
-    private boolean rpn = true;
+    private static final int FLUSH = 1 << 13;                       // chars held before the buffer goes to the output
+
+    private final StringBuilder buffer = new StringBuilder(FLUSH + 256);
+    private Appendable out;
+
+    // AstPrinter [--rpn | --parens | --json] script, -Djlox.hashcons to print what the interpreter would run instead
+    // the text forms are one line per expression in the script, json covers the whole program
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0) {
+            Expr expression = new Expr.Binary(
+                new Expr.Unary(
+                    new Token(TokenType.MINUS, "-", null, 1),
+                    new Expr.Literal(123)
+                ),
+
+                new Token(TokenType.STAR, "*", null, 1),
 
-    public static void main(String[] args) {
-        Expr expression = new Expr.Binary(
-            new Expr.Unary(
-                new Token(TokenType.MINUS, "-", null, 1),
-                new Expr.Literal(123)
-            ),
+                new Expr.Grouping(
+                    new Expr.Literal(45.67)
+                )
+            );
 
-            new Token(TokenType.STAR, "*", null, 1),
+            System.out.println(new AstPrinter().print(expression));
+            return;
+        }
+
+        if(args.length != 2 || !(args[0].equals("--rpn") || args[0].equals("--parens") || args[0].equals("--json"))) {
+            System.err.println("usage: ast_printer [--rpn | --parens | --json] [script]");
+            System.exit(64);
+        }
 
-            new Expr.Grouping(
-                new Expr.Literal(45.67)
-            )
-        );
+        String source = new String(Files.readAllBytes(Paths.get(args[1])), Charset.defaultCharset());
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        if(statements == null) {
+            System.err.println("ast_printer: " + args[1] + " doesn't parse");
+            System.exit(65);
+        }
+
+        if(Boolean.getBoolean("jlox.hashcons")) {
+            new Resolver(new Globals()).resolve(statements);
+            statements = HashConser.share(statements).statements;
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), 1 << 16);
+        AstPrinter printer = new AstPrinter();
+        if(args[0].equals("--json")) {
+            printer.dump(statements, out);
+        } else {
+            for(Expr root : roots(statements, new ArrayList<>())) {
+                printer.print(root, args[0].equals("--rpn"), out);
+                out.append('\n');
+            }
+        }
 
-        System.out.println(new AstPrinter().print(expression));
+        out.flush();
     }
 
     String print(Expr expr) {
-        return expr.accept(this);
+        return print(expr, true);
     }
 
     String print(Expr expr, boolean rpn) {
-        this.rpn = rpn;
-        return expr.accept(this);
+        StringBuilder text = new StringBuilder();
+        try {
+            print(expr, rpn, text);
+        } catch(IOException error) {
+            throw new UncheckedIOException(error);                  // can't happen with a StringBuilder
+        }
+
+        return text.toString();
+    }
+
+    // rpn puts every node after its children: 123 - 45.67 group *, the other way is (* (- 123) (group 45.67))
+    // the work stack holds nodes still to expand and the text that goes between them, in the order it's written
+    void print(Expr expr, boolean rpn, Appendable out) throws IOException {
+        this.out = out;
+        Deque<Object> work = new ArrayDeque<>();
+        work.push(expr);
+
+        while(!work.isEmpty()) {
+            Object item = work.pop();
+            if(!(item instanceof Expr)) {
+                write((String)item);
+                continue;
+            }
+
+            Expr node = (Expr)item;
+            Expr[] children = HashConser.children(node);
+            String label = node.accept(this);
+            if(children.length == 0) {
+                write(label);
+            } else if(rpn) {
+                work.push(label);
+                for(int i = children.length - 1; i >= 0; --i) {
+                    work.push(" ");
+                    work.push(children[i]);
+                }
+            } else {
+                write("(");
+                write(label);
+                work.push(")");
+                for(int i = children.length - 1; i >= 0; --i) {
+                    work.push(children[i]);
+                    work.push(" ");
+                }
+            }
+        }
+
+        flush();
+    }
+
+    // one json object per line, children before their parents and each with an id the parents list them by, so a
+    // node that's shared is written once and every parent points at it
+    // ids only depend on the shape of the tree, so two dumps of the same program line up for diff
+    void dump(Expr expr, Appendable out) throws IOException {
+        this.out = out;
+        dump(expr, new IdentityHashMap<>());
+        flush();
+    }
+
+    // statements nest shallow enough to recurse, like everywhere else
+    void dump(List<Stmt> statements, Appendable out) throws IOException {
+        this.out = out;
+        Map<Object, Integer> ids = new IdentityHashMap<>();
+        for(Stmt statement : statements) {
+            dump(statement, ids);
+        }
+
+        flush();
+    }
+
+    // how much a hash-consed program shares: the nodes it would have as plain trees against the nodes it really has
+    // statements share with each other too, so it's counted over every expression in the program at once
+    String sharing(HashConser.Dag dag) {
+        Map<Expr, Long> sizes = new IdentityHashMap<>();           // size of the unshared tree under every node
+        Deque<Expr> pending = new ArrayDeque<>();
+        for(Expr root : dag.roots) {
+            pending.push(root);
+        }
+
+        while(!pending.isEmpty()) {
+            Expr node = pending.peek();
+            if(sizes.containsKey(node)) {
+                pending.pop();
+                continue;
+            }
+
+            long size = 1;
+            boolean ready = true;
+            for(Expr child : HashConser.children(node)) {
+                Long known = sizes.get(child);
+                if(known == null) {
+                    pending.push(child);
+                    ready = false;
+                } else {
+                    size += known;
+                }
+            }
+
+            if(ready) {
+                pending.pop();
+                sizes.put(node, size);
+            }
+        }
+
+        long tree = 0;
+        for(Expr root : dag.roots) {
+            tree += sizes.get(root);
+        }
+
+        return String.format("%d nodes, %d distinct, %.2fx sharing", tree, sizes.size(), sizes.isEmpty() ? 1.0 : (double)tree / sizes.size());
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return "= " + expr.name.lexeme;
     }
 
     @Override
     public String visitTernaryExpr(Expr.Ternary expr) {
-        return parenthesize("?", rpn, expr.condition, expr.left, expr.right);
+        return "?";
     }
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, rpn, expr.left, expr.right);
+        return expr.operator.lexeme;
     }
 
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", rpn, expr.expression);
+        return "group";
     }
 
     @Override
@@ -53,7 +225,7 @@ public class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, rpn, expr.right);
+        return expr.operator.lexeme;
     }
 
     @Override
@@ -61,26 +233,217 @@ public class AstPrinter implements Expr.Visitor<String> {
         return "exit";
     }
 
-    private String parenthesize(String name, boolean rpn, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        return "call";
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return "." + expr.name.lexeme;
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return "= ." + expr.name.lexeme;
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "super." + expr.method.lexeme;
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
+    // bottom up with its own stack, a node gets its id (and its line) once all of its children have one
+    private int dump(Expr root, Map<Object, Integer> ids) throws IOException {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        while(!pending.isEmpty()) {
+            Expr node = pending.peek();
+            if(ids.containsKey(node)) {
+                pending.pop();
+                continue;
+            }
+
+            Expr[] children = HashConser.children(node);
+            boolean ready = true;
+            for(int i = children.length - 1; i >= 0; --i) {       // backwards, so the first child is numbered first
+                if(!ids.containsKey(children[i])) {
+                    pending.push(children[i]);
+                    ready = false;
+                }
+            }
+
+            if(ready) {
+                pending.pop();
+                line(node, ids, children);
+            }
+        }
+
+        return ids.get(root);
+    }
+
+    private int dump(Stmt statement, Map<Object, Integer> ids) throws IOException {
+        List<Object> children = new ArrayList<>();
+        if(statement instanceof Stmt.Block) {
+            children.addAll(((Stmt.Block)statement).statements);
+        } else if(statement instanceof Stmt.Class) {
+            Stmt.Class klass = (Stmt.Class)statement;
+            if(klass.superclass != null) children.add(klass.superclass);
+            children.addAll(klass.methods);
+        } else if(statement instanceof Stmt.Function) {
+            children.addAll(((Stmt.Function)statement).body);
+        } else if(statement instanceof Stmt.Var) {
+            if(((Stmt.Var)statement).initializer != null) children.add(((Stmt.Var)statement).initializer);
+        } else if(statement instanceof Stmt.Return) {
+            if(((Stmt.Return)statement).value != null) children.add(((Stmt.Return)statement).value);
+        } else if(statement instanceof Stmt.Print) {
+            children.add(((Stmt.Print)statement).expression);
+        } else {
+            children.add(((Stmt.Expression)statement).expression);
+        }
+
+        for(Object child : children) {
+            if(child instanceof Expr) {
+                dump((Expr)child, ids);
+            } else {
+                dump((Stmt)child, ids);
+            }
+        }
+
+        return line(statement, ids, children.toArray());
+    }
+
+    // {"id":3,"node":"Binary","op":"+","children":[1,2]}
+    private int line(Object node, Map<Object, Integer> ids, Object[] children) throws IOException {
+        int id = ids.size();
+        ids.put(node, id);
+
+        write("{\"id\":");
+        write(Integer.toString(id));
+        write(",\"node\":\"");
+        write(node.getClass().getSimpleName());
+        write("\"");
+        attributes(node);
 
-        if(rpn) {
-            for(Expr expr : exprs) {
-                builder.append(expr.accept(this));
-                builder.append(" ");
+        write(",\"children\":[");
+        for(int i = 0; i < children.length; ++i) {
+            if(i > 0) write(",");
+            write(Integer.toString(ids.get(children[i])));
+        }
+
+        write("]}\n");
+        return id;
+    }
+
+    private void attributes(Object node) throws IOException {
+        if(node instanceof Expr.Binary) {
+            attribute("op", ((Expr.Binary)node).operator.lexeme);
+        } else if(node instanceof Expr.Unary) {
+            attribute("op", ((Expr.Unary)node).operator.lexeme);
+        } else if(node instanceof Expr.Literal) {
+            write(",\"value\":");
+            Object value = ((Expr.Literal)node).value;
+            if(value instanceof Double && !((Double)value).isInfinite() && !((Double)value).isNaN()) {
+                write(value.toString());                            // always a valid json number
+            } else if(value == null || value instanceof Boolean) {
+                write(String.valueOf(value));
+            } else {
+                string(value.toString());
             }
+        } else if(node instanceof Expr.Variable) {
+            attribute("name", ((Expr.Variable)node).name.lexeme);
+        } else if(node instanceof Expr.Assign) {
+            attribute("name", ((Expr.Assign)node).name.lexeme);
+        } else if(node instanceof Expr.Get) {
+            attribute("name", ((Expr.Get)node).name.lexeme);
+        } else if(node instanceof Expr.Set) {
+            attribute("name", ((Expr.Set)node).name.lexeme);
+        } else if(node instanceof Expr.Super) {
+            attribute("method", ((Expr.Super)node).method.lexeme);
+        } else if(node instanceof Stmt.Var) {
+            attribute("name", ((Stmt.Var)node).name.lexeme);
+        } else if(node instanceof Stmt.Class) {
+            attribute("name", ((Stmt.Class)node).name.lexeme);
+        } else if(node instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function)node;
+            attribute("name", function.name.lexeme);
 
-            builder.append(name);
-            return builder.toString();
+            write(",\"params\":[");
+            for(int i = 0; i < function.params.size(); ++i) {
+                if(i > 0) write(",");
+                string(function.params.get(i).lexeme);
+            }
+
+            write("]");
         }
+    }
 
-        builder.append("(").append(name);
-        for(Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+    private void attribute(String key, String value) throws IOException {
+        write(",\"");
+        write(key);
+        write("\":");
+        string(value);
+    }
+
+    private void string(String value) throws IOException {
+        write("\"");
+        for(int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                buffer.append('\\').append(c);
+            } else if(c < 0x20) {
+                buffer.append(String.format("\\u%04x", (int)c));
+            } else {
+                buffer.append(c);
+            }
+        }
+
+        write("\"");
+    }
+
+    private void write(String text) throws IOException {
+        buffer.append(text);
+        if(buffer.length() >= FLUSH) flush();
+    }
+
+    private void flush() throws IOException {
+        out.append(buffer);
+        buffer.setLength(0);
+    }
+
+    // every expression a program holds at the top of a statement, in order
+    private static List<Expr> roots(List<Stmt> statements, List<Expr> roots) {
+        for(Stmt statement : statements) {
+            if(statement instanceof Stmt.Block) {
+                roots(((Stmt.Block)statement).statements, roots);
+            } else if(statement instanceof Stmt.Class) {
+                for(Stmt.Function method : ((Stmt.Class)statement).methods) {
+                    roots(method.body, roots);
+                }
+            } else if(statement instanceof Stmt.Function) {
+                roots(((Stmt.Function)statement).body, roots);
+            } else if(statement instanceof Stmt.Var) {
+                if(((Stmt.Var)statement).initializer != null) roots.add(((Stmt.Var)statement).initializer);
+            } else if(statement instanceof Stmt.Return) {
+                if(((Stmt.Return)statement).value != null) roots.add(((Stmt.Return)statement).value);
+            } else if(statement instanceof Stmt.Print) {
+                roots.add(((Stmt.Print)statement).expression);
+            } else {
+                roots.add(((Stmt.Expression)statement).expression);
+            }
         }
 
-        builder.append(")");
-        return builder.toString();
+        return roots;
     }
 }
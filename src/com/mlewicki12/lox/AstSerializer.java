@@ -0,0 +1,529 @@
+
+package com.mlewicki12.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * compact binary form of a parsed program, so a script that hasn't changed can skip the Scanner and Parser
+ *
+ * layout (big endian):
+ *   magic "LOXC", format version, 64 bit hash of the source it was compiled from
+ *   string pool: count, then every distinct lexeme/string literal once as length + utf-16 chars
+ *   node count, then the nodes in postfix order, each a tag byte followed by its payload, with every statement
+ *   straight after its expression, and a block or function straight after the statements in it
+ *
+ * tokens are written as type, pool index and line, so a node never decodes a string of its own, and postfix order
+ * means reading is a loop over a stack instead of recursion
+ * what the Resolver works out isn't kept, a loaded script is resolved again against whoever is going to run it
+ */
+public class AstSerializer implements Expr.Visitor<Void> {
+    private static final int MAGIC = 0x4c4f5843;                    // "LOXC"
+    private static final byte VERSION = 5;                          // 2 added statements, 3 variables and blocks,
+                                                                    // 4 functions, 5 classes
+
+    private static final byte TERNARY       = 1;
+    private static final byte BINARY        = 2;
+    private static final byte GROUPING      = 3;
+    private static final byte NIL           = 4;
+    private static final byte TRUE          = 5;
+    private static final byte FALSE         = 6;
+    private static final byte NUMBER        = 7;
+    private static final byte STRING        = 8;
+    private static final byte UNARY         = 9;
+    private static final byte EXIT          = 10;
+    private static final byte EXPRESSION    = 11;
+    private static final byte PRINT         = 12;
+    private static final byte ASSIGN        = 13;
+    private static final byte VARIABLE      = 14;
+    private static final byte VAR           = 15;
+    private static final byte BLOCK         = 16;
+    private static final byte CALL          = 17;
+    private static final byte FUNCTION      = 18;
+    private static final byte RETURN        = 19;
+    private static final byte GET           = 20;
+    private static final byte SET           = 21;
+    private static final byte SUPER         = 22;
+    private static final byte THIS          = 23;
+    private static final byte CLASS         = 24;
+
+    private static final TokenType[] types = TokenType.values();
+
+    private final Map<String, Integer> pool = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Deque<Object> work = new ArrayDeque<>();          // Exprs still to expand, or Emits ready to write
+    private final DataOutputStream out;
+    private int nodes = 0;
+
+    private AstSerializer(DataOutputStream out) {
+        this.out = out;
+    }
+
+    static void write(Path path, List<Stmt> statements, long hash) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        AstSerializer serializer = new AstSerializer(new DataOutputStream(body));
+        for(Stmt statement : statements) {
+            serializer.serialize(statement);
+        }
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream(body.size() + 64);
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(hash);
+
+        out.writeInt(serializer.strings.size());
+        for(String string : serializer.strings) {
+            out.writeInt(string.length());
+            out.writeChars(string);
+        }
+
+        out.writeInt(serializer.nodes);
+        body.writeTo(out);
+        out.flush();
+
+        // never rewrite the file in place, another jlox could have it mapped and would fault on the changed bytes
+        // instead it gets a whole new file swapped in, and anyone with the old one mapped keeps reading the old one
+        // (not createTempFile, that would leave the cache readable by nobody else)
+        Path temporary = path.resolveSibling(path.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            Files.write(temporary, file.toByteArray(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException | RuntimeException error) {
+            Files.deleteIfExists(temporary);
+            throw error;
+        }
+    }
+
+    // returns null if the file isn't a compiled script, was written by another version, or doesn't match the hash
+    static List<Stmt> read(Path path, long hash) throws IOException {
+        return read(path, true, hash);
+    }
+
+    // load a compiled script without checking which source it came from
+    static List<Stmt> read(Path path) throws IOException {
+        return read(path, false, 0);
+    }
+
+    // a 64 bit fnv-1a hash of the source bytes, used to key the cache
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static List<Stmt> read(Path path, boolean check, long hash) throws IOException {
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if(buffer.remaining() < 13 || buffer.getInt() != MAGIC || buffer.get() != VERSION) return null;
+        if(buffer.getLong() != hash && check) return null;
+
+        int count = count(buffer, buffer.remaining() / 4);        // every string takes at least its length
+        if(count < 0) return null;
+
+        String[] strings = new String[count];
+        for(int i = 0; i < strings.length; ++i) {
+            int length = count(buffer, buffer.remaining() / 2);
+            if(length < 0) return null;
+
+            char[] chars = new char[length];
+            buffer.asCharBuffer().get(chars);
+            buffer.position(buffer.position() + chars.length * 2);
+            strings[i] = new String(chars);
+        }
+
+        Deque<Expr> stack = new ArrayDeque<>();
+        List<Stmt> statements = new ArrayList<>();
+        int nodes = buffer.getInt();
+        for(int i = 0; i < nodes; ++i) {
+            byte tag = buffer.get();
+            switch(tag) {
+                case TERNARY: {
+                    Expr right = stack.pop(), left = stack.pop(), condition = stack.pop();
+                    stack.push(new Expr.Ternary(condition, left, right));
+                    break;
+                }
+
+                case BINARY: {
+                    Token operator = readToken(buffer, strings);
+                    Expr right = stack.pop(), left = stack.pop();
+                    stack.push(new Expr.Binary(left, operator, right));
+                    break;
+                }
+
+                case GROUPING: stack.push(new Expr.Grouping(stack.pop())); break;
+                case NIL: stack.push(new Expr.Literal(null)); break;
+                case TRUE: stack.push(new Expr.Literal(true)); break;
+                case FALSE: stack.push(new Expr.Literal(false)); break;
+                case NUMBER: stack.push(new Expr.Literal(buffer.getDouble())); break;
+                case STRING: stack.push(new Expr.Literal(strings[buffer.getInt()])); break;
+                case UNARY: stack.push(new Expr.Unary(readToken(buffer, strings), stack.pop())); break;
+                case EXIT: stack.push(new Expr.Exit(readToken(buffer, strings))); break;
+                case EXPRESSION: statements.add(new Stmt.Expression(stack.pop())); break;
+                case PRINT: statements.add(new Stmt.Print(stack.pop())); break;
+                case ASSIGN: stack.push(new Expr.Assign(readToken(buffer, strings), stack.pop())); break;
+                case VARIABLE: stack.push(new Expr.Variable(readToken(buffer, strings))); break;
+
+                case VAR: {
+                    Token name = readToken(buffer, strings);
+                    statements.add(new Stmt.Var(name, buffer.get() != 0 ? stack.pop() : null));
+                    break;
+                }
+
+                case BLOCK: {
+                    int size = count(buffer, statements.size());
+                    if(size < 0) return null;
+
+                    List<Stmt> inside = statements.subList(statements.size() - size, statements.size());
+                    Stmt.Block block = new Stmt.Block(new ArrayList<>(inside));
+                    inside.clear();
+                    statements.add(block);
+                    break;
+                }
+
+                case CALL: {
+                    Token paren = readToken(buffer, strings);
+                    int size = count(buffer, stack.size() - 1);     // the callee is on the stack too
+                    if(size < 0) return null;
+
+                    Expr[] arguments = new Expr[size];
+                    for(int j = arguments.length - 1; j >= 0; --j) {
+                        arguments[j] = stack.pop();
+                    }
+
+                    stack.push(new Expr.Call(stack.pop(), paren, new ArrayList<>(List.of(arguments))));
+                    break;
+                }
+
+                case FUNCTION: {
+                    Token name = readToken(buffer, strings);
+                    List<Token> params = new ArrayList<>();
+                    for(int j = buffer.getInt(); j > 0; --j) {
+                        params.add(readToken(buffer, strings));
+                    }
+
+                    int size = count(buffer, statements.size());
+                    if(size < 0) return null;
+
+                    List<Stmt> body = statements.subList(statements.size() - size, statements.size());
+                    Stmt.Function function = new Stmt.Function(name, params, new ArrayList<>(body));
+                    body.clear();
+                    statements.add(function);
+                    break;
+                }
+
+                case GET: stack.push(new Expr.Get(stack.pop(), readToken(buffer, strings))); break;
+                case THIS: stack.push(new Expr.This(readToken(buffer, strings))); break;
+
+                case SET: {
+                    Token name = readToken(buffer, strings);
+                    Expr value = stack.pop(), object = stack.pop();
+                    stack.push(new Expr.Set(object, name, value));
+                    break;
+                }
+
+                case SUPER: {
+                    Token keyword = readToken(buffer, strings);
+                    stack.push(new Expr.Super(keyword, readToken(buffer, strings)));
+                    break;
+                }
+
+                case CLASS: {
+                    Token name = readToken(buffer, strings);
+                    Expr.Variable superclass = buffer.get() != 0 ? (Expr.Variable)stack.pop() : null;
+
+                    int size = count(buffer, statements.size());
+                    if(size < 0) return null;
+
+                    List<Stmt> inside = statements.subList(statements.size() - size, statements.size());
+                    List<Stmt.Function> methods = new ArrayList<>(inside.size());
+                    for(Stmt method : inside) {
+                        methods.add((Stmt.Function)method);
+                    }
+
+                    inside.clear();
+                    statements.add(new Stmt.Class(name, superclass, methods));
+                    break;
+                }
+
+                case RETURN: {
+                    Token keyword = readToken(buffer, strings);
+                    statements.add(new Stmt.Return(keyword, buffer.get() != 0 ? stack.pop() : null));
+                    break;
+                }
+
+                default:
+                    return null;                                    // corrupt file, just fall back to parsing
+            }
+        }
+
+        return stack.isEmpty() ? statements : null;
+    }
+
+    // a count or length out of the file, or -1 if it's more than the file could hold. a corrupt file
+    // mustn't get to size our arrays, a huge count would be an OutOfMemoryError and not a clean rejection
+    private static int count(ByteBuffer buffer, int limit) {
+        int count = buffer.getInt();
+        return count < 0 || count > limit ? -1 : count;
+    }
+
+    private static Token readToken(ByteBuffer buffer, String[] strings) {
+        TokenType type = types[buffer.get()];
+        String lexeme = strings[buffer.getInt()];
+        return new Token(type, lexeme, null, buffer.getInt());
+    }
+
+    private void serialize(Stmt statement) throws IOException {
+        if(statement instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)statement).statements;
+            for(Stmt inside : statements) {
+                serialize(inside);
+            }
+
+            out.writeByte(BLOCK);
+            out.writeInt(statements.size());
+        } else if(statement instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)statement;
+            if(var.initializer != null) serialize(var.initializer);
+
+            out.writeByte(VAR);
+            writeToken(var.name);
+            out.writeByte(var.initializer != null ? 1 : 0);
+        } else if(statement instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function)statement;
+            for(Stmt inside : function.body) {
+                serialize(inside);
+            }
+
+            out.writeByte(FUNCTION);
+            writeToken(function.name);
+            out.writeInt(function.params.size());
+            for(Token param : function.params) {
+                writeToken(param);
+            }
+
+            out.writeInt(function.body.size());
+        } else if(statement instanceof Stmt.Class) {
+            Stmt.Class klass = (Stmt.Class)statement;
+            if(klass.superclass != null) serialize(klass.superclass);  // stays on the stack under the methods
+            for(Stmt.Function method : klass.methods) {
+                serialize(method);
+            }
+
+            out.writeByte(CLASS);
+            writeToken(klass.name);
+            out.writeByte(klass.superclass != null ? 1 : 0);
+            out.writeInt(klass.methods.size());
+        } else if(statement instanceof Stmt.Return) {
+            Stmt.Return ret = (Stmt.Return)statement;
+            if(ret.value != null) serialize(ret.value);
+
+            out.writeByte(RETURN);
+            writeToken(ret.keyword);
+            out.writeByte(ret.value != null ? 1 : 0);
+        } else if(statement instanceof Stmt.Print) {
+            serialize(((Stmt.Print)statement).expression);
+            out.writeByte(PRINT);
+        } else {
+            serialize(((Stmt.Expression)statement).expression);
+            out.writeByte(EXPRESSION);
+        }
+
+        nodes++;
+    }
+
+    private void serialize(Expr root) throws IOException {
+        work.push(root);
+
+        while(!work.isEmpty()) {
+            Object item = work.pop();
+            if(item instanceof Emit) {
+                emit(((Emit)item).expr);
+            } else {
+                ((Expr)item).accept(this);                          // queues the node after its children
+            }
+        }
+    }
+
+    // the visit methods only schedule, children are pushed last so they come off the stack (and are written) first
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        return schedule(expr, expr.value);
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        return schedule(expr, expr.condition, expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        return schedule(expr, expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        return schedule(expr, expr.expression);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return schedule(expr);
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        return schedule(expr, expr.right);
+    }
+
+    @Override
+    public Void visitExitExpr(Expr.Exit expr) {
+        return schedule(expr);
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return schedule(expr);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        return schedule(expr, expr.object);
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        return schedule(expr, expr.object, expr.value);
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return schedule(expr);
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return schedule(expr);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        Expr[] children = new Expr[expr.arguments.size() + 1];
+        children[0] = expr.callee;
+        for(int i = 0; i < expr.arguments.size(); ++i) {
+            children[i + 1] = expr.arguments.get(i);
+        }
+
+        return schedule(expr, children);
+    }
+
+    private Void schedule(Expr expr, Expr... children) {
+        work.push(new Emit(expr));
+        for(int i = children.length - 1; i >= 0; --i) {
+            work.push(children[i]);
+        }
+
+        return null;
+    }
+
+    private void emit(Expr expr) throws IOException {
+        nodes++;
+
+        if(expr instanceof Expr.Ternary) {
+            out.writeByte(TERNARY);
+        } else if(expr instanceof Expr.Binary) {
+            out.writeByte(BINARY);
+            writeToken(((Expr.Binary)expr).operator);
+        } else if(expr instanceof Expr.Grouping) {
+            out.writeByte(GROUPING);
+        } else if(expr instanceof Expr.Unary) {
+            out.writeByte(UNARY);
+            writeToken(((Expr.Unary)expr).operator);
+        } else if(expr instanceof Expr.Exit) {
+            out.writeByte(EXIT);
+            writeToken(((Expr.Exit)expr).exit);
+        } else if(expr instanceof Expr.Assign) {
+            out.writeByte(ASSIGN);
+            writeToken(((Expr.Assign)expr).name);
+        } else if(expr instanceof Expr.Variable) {
+            out.writeByte(VARIABLE);
+            writeToken(((Expr.Variable)expr).name);
+        } else if(expr instanceof Expr.Get) {
+            out.writeByte(GET);
+            writeToken(((Expr.Get)expr).name);
+        } else if(expr instanceof Expr.Set) {
+            out.writeByte(SET);
+            writeToken(((Expr.Set)expr).name);
+        } else if(expr instanceof Expr.Super) {
+            out.writeByte(SUPER);
+            writeToken(((Expr.Super)expr).keyword);
+            writeToken(((Expr.Super)expr).method);
+        } else if(expr instanceof Expr.This) {
+            out.writeByte(THIS);
+            writeToken(((Expr.This)expr).keyword);
+        } else if(expr instanceof Expr.Call) {
+            out.writeByte(CALL);
+            writeToken(((Expr.Call)expr).paren);
+            out.writeInt(((Expr.Call)expr).arguments.size());
+        } else {
+            Object value = ((Expr.Literal)expr).value;
+            if(value == null) {
+                out.writeByte(NIL);
+            } else if(value instanceof Boolean) {
+                out.writeByte((boolean)value ? TRUE : FALSE);
+            } else if(value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((double)value);
+            } else {
+                out.writeByte(STRING);
+                out.writeInt(intern(value.toString()));
+            }
+        }
+    }
+
+    private void writeToken(Token token) throws IOException {
+        out.writeByte(token.type.ordinal());
+        out.writeInt(intern(token.lexeme));
+        out.writeInt(token.line);
+    }
+
+    private int intern(String string) {
+        Integer index = pool.get(string);
+        if(index == null) {
+            index = strings.size();
+            pool.put(string, index);
+            strings.add(string);
+        }
+
+        return index;
+    }
+
+    private static class Emit {
+        final Expr expr;
+
+        Emit(Expr expr) {
+            this.expr = expr;
+        }
+    }
+}
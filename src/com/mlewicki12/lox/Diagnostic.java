@@ -0,0 +1,22 @@
+
+package com.mlewicki12.lox;
+
+// an error found while parsing, kept around so the caller decides whether and where to print it
+class Diagnostic {
+    final int line;
+    final String where;
+    final String message;
+    final boolean atEnd;            // the tokens ran out, so more of them might have fixed it
+
+    Diagnostic(Token token, String message) {
+        this.line = token.line;
+        this.atEnd = token.type == TokenType.EOF;
+        this.where = atEnd ? " at end" : " at " + token.lexeme;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + line + "] jlox error " + where + ": " + message;
+    }
+}
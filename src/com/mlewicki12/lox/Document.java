@@ -0,0 +1,491 @@
+
+package com.mlewicki12.lox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/*
+ * a source buffer that keeps its tokens and statements up to date as it gets edited, for editors and the repl (which
+ * appends a line at a time until what it has parses)
+ * an edit is relexed from just before it until the new tokens line up with the old ones again, and then the top level
+ * statements are reparsed from the one the edit landed in until a statement ends where an old one ended, past the
+ * edit, everything after that is the same tokens parsed from the same place, so the old statements are kept as they are
+ * tokens and trees are never changed, what's reparsed is built new, so a statement handed out earlier stays valid
+ * a statement is the smallest piece that gets reparsed, so an edit costs the statement around it (a whole function,
+ * for an edit in its body), and an edit that adds or removes lines moves every token after it, which means new tokens
+ * and reparsing everything after it too
+ * anything that can't be done locally falls back to the whole buffer: lexical errors, mostly
+ *
+ * the text, the tokens and the statements are gap buffers with their gaps left at the last edit, so an edit only moves
+ * what's between it and the one before, and everything behind a gap is kept relative to the end: token offsets as how
+ * far before the end of the text they start, and statement ends as how many tokens before the end they are, so
+ * growing or shrinking the text doesn't touch any of it
+ */
+class Document {
+    private char[] text;                                                    // the source, with a gap in the middle
+    private int textGap;                                                    // the gap is [textGap, textAfter)
+    private int textAfter;
+    private String source;                                                  // the text as a string, null after an edit until asked for
+
+    private Token[] tokens;                                                 // EOF included, with a gap at gap
+    private int[] starts;                                                   // offset of every token, from the end of the text behind the gap
+    private int gap;                                                        // the gap is [gap, after)
+    private int after;
+    private int count;                                                      // tokens on both sides of the gap
+    private List<TableScanner.ScanError> lexErrors = new ArrayList<>();
+    private boolean unclosed;                                               // a string or comment runs off the end, one of the lexErrors
+
+    private Unit[] units = new Unit[16];                                    // the statements, with a gap at unitGap
+    private int unitGap;                                                    // the gap is [unitGap, unitAfter)
+    private int unitAfter = units.length;
+    private int broken;                                                     // units with errors in them
+    private List<Diagnostic> diagnostics;                                   // all of their errors, null after an edit until asked for
+    private int pulled;                                                     // tokens the parser has taken so far
+
+    private final List<Token> tokenView = new AbstractList<Token>() {
+        @Override
+        public Token get(int index) {
+            return token(Objects.checkIndex(index, count));
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    };
+
+    private final List<Stmt> statementView = new AbstractList<Stmt>() {
+        @Override
+        public Stmt get(int index) {
+            return unit(Objects.checkIndex(index, size())).statement;
+        }
+
+        @Override
+        public int size() {
+            int size = unitGap + units.length - unitAfter;
+            return size > 0 && unit(size - 1).statement == null ? size - 1 : size;
+        }
+    };
+
+    Document(String source) {
+        this.text = source.toCharArray();
+        this.textGap = this.textAfter = text.length;
+        this.source = source;
+        rescan();
+        reparse();
+    }
+
+    String source() {
+        if(source == null) source = text(0, length());
+        return source;
+    }
+
+    int length() {
+        return text.length - (textAfter - textGap);
+    }
+
+    List<Token> tokens() {
+        return tokenView;
+    }
+
+    // every statement that parsed, the broken ones are skipped over, so check diagnostics before running them
+    List<Stmt> statements() {
+        return statementView;
+    }
+
+    List<Diagnostic> diagnostics() {
+        if(diagnostics != null) return diagnostics;
+        if(broken == 0) return diagnostics = Collections.emptyList();
+
+        diagnostics = new ArrayList<>();
+        for(int i = 0; i < unitGap + units.length - unitAfter; ++i) {
+            diagnostics.addAll(unit(i).diagnostics);
+        }
+
+        return diagnostics;
+    }
+
+    List<TableScanner.ScanError> lexErrors() {
+        return lexErrors;
+    }
+
+    // it doesn't parse, but only because it stops too soon (an open block or string, a missing ;), so more text might fix it
+    boolean incomplete() {
+        if(lexErrors.size() > (unclosed ? 1 : 0)) return false;
+        if(broken == 0 && !unclosed) return false;
+
+        for(Diagnostic diagnostic : diagnostics()) {
+            if(!diagnostic.atEnd) return false;
+        }
+
+        return true;
+    }
+
+    // replace removed characters at offset with inserted
+    void edit(int offset, int removed, String inserted) {
+        int first = lexErrors.isEmpty() ? firstChanged(offset) : -1;
+        int from = 0;
+        if(first >= 0) {                                                    // before the text changes, so what's behind the gaps moves with the end
+            moveGap(first);
+
+            int unit = unitAt(first);
+            moveUnitGap(unit);
+            from = unit == 0 ? 0 : unitEnd(unit - 1);
+        }
+
+        replaceText(offset, removed, inserted);
+        diagnostics = null;
+
+        int[] damaged = first >= 0 ? relex(first, offset, inserted.length()) : null;
+        if(damaged == null) {
+            rescan();
+            reparse();
+        } else {
+            reparse(from, damaged[0], damaged[1] != 0);
+        }
+    }
+
+    // the first token the edit can change, everything before it is kept as the same Token
+    // no token looks more than two characters past its end, so the search gets within a couple of tokens of it
+    private int firstChanged(int offset) {
+        int low = 0, high = count - 1;                                      // EOF is always relexed
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(end(middle) + 2 <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        while(low < count - 1 && end(low) + lookahead(token(low)) <= offset) low++;
+        return low;
+    }
+
+    // relexes around the edit and splices the new tokens in at the gap, returning where the new tokens end and how
+    // many lines the edit added, or null if the edit ran into a lexical error and the buffer has to be scanned again
+    // the gap is already at first, so every old token from there on is behind it and at its offset in the new text
+    private int[] relex(int first, int offset, int inserted) {
+        // the streams can only line up again on an old token that starts after the inserted text
+        int old = first;
+        while(old < count - 1 && start(old) < offset + inserted) old++;
+
+        // start right after the last token that's kept, the lexer is always between tokens there
+        Token kept = first == 0 ? null : tokens[first - 1];
+        int from = kept == null ? 0 : starts[first - 1] + kept.lexeme.length();
+        int length = length();
+
+        TableScanner scanner = null;
+        int resyncNew = -1, resyncOld = -1, lineDelta = 0;
+        int window = 256;
+        int checked = 0;
+
+        while(resyncNew < 0) {
+            // the scanner needs the text as a string, so a window that was too small is cut again twice as big and
+            // scanned over from the start, the tokens it had already are the same and aren't checked twice
+            int to = nextLine(Math.max(from + window, offset + inserted));
+            String slice = text(from, to);
+            scanner = new TableScanner(slice, slice.toCharArray(), kept == null ? 1 : kept.line, true);
+            scanner.trackStarts();
+            scanner.scan(0, slice.length());
+            if(!scanner.errors().isEmpty()) return null;
+
+            List<Token> scanned = scanner.tokens();
+            for(; checked < scanned.size(); ++checked) {
+                int start = from + scanner.start(checked);
+                while(old < count - 1 && start(old) < start) old++;
+
+                // both lexers start a token at the same place in the same text, so everything from here on matches
+                if(old < count - 1 && start(old) == start) {
+                    resyncNew = checked;
+                    resyncOld = old;
+                    lineDelta = scanned.get(checked).line - token(old).line;
+                    break;
+                }
+            }
+
+            if(resyncNew < 0 && to == length) {
+                scanner.finish();
+                if(!scanner.errors().isEmpty()) return null;
+
+                resyncNew = scanned.size();                                 // lined up at the end, only EOF is kept
+                resyncOld = count - 1;
+                lineDelta = scanner.line() - token(count - 1).line;
+            }
+
+            window *= 2;
+        }
+
+        // the old tokens are the first ones behind the gap, so they're dropped by widening it, and the new ones go
+        // in at its front
+        for(int i = first; i < resyncOld; ++i) {
+            tokens[after++] = null;
+        }
+
+        count -= resyncOld - first;
+
+        List<Token> fresh = scanner.tokens().subList(0, resyncNew);
+        if(after - gap < fresh.size()) growTokens(fresh.size());
+        for(int i = 0; i < fresh.size(); ++i) {
+            tokens[gap] = fresh.get(i);
+            starts[gap++] = from + scanner.start(i);
+        }
+
+        count += fresh.size();
+
+        if(lineDelta != 0) {                                                // tokens don't change, so everything after it is new ones
+            for(int i = after; i < tokens.length; ++i) {
+                Token token = tokens[i];
+                tokens[i] = new Token(token.type, token.lexeme, token.literal, token.line + lineDelta);
+            }
+        }
+
+        return new int[] { gap, lineDelta };
+    }
+
+    // parses statements from the token at from, in place of the old ones behind the gap, until one of them ends where
+    // an old one did at or past damaged, or to the end if everything after the edit has to be parsed again
+    // a statement ends on a ; or } it took, so where it ends never depends on what comes after, and a parser at a
+    // statement boundary is the same as a new one. the one exception is the end, where a bare expression is printed,
+    // so whatever runs into EOF counts as ending past it, and gets parsed again when anything is added
+    private void reparse(int from, int damaged, boolean toEnd) {
+        pulled = 0;
+        Parser parser = new Parser(() -> token(from + pulled++), Parser.MAX_ERRORS);
+        List<Diagnostic> found = parser.diagnostics();
+
+        for(;;) {
+            int errors = found.size();
+            Stmt statement = parser.next();
+            int end = from + pulled - 1;                                    // the parser always holds one token past it
+            if(statement == null || end == count - 1) end = count;          // it ran into EOF (or gave up), more text could change it
+
+            boolean lined = false;
+            while(unitAfter < units.length && units[unitAfter].end + count <= end) {
+                Unit old = units[unitAfter];
+                lined = !toEnd && statement != null && old.end + count == end && end >= damaged;
+                if(!old.diagnostics.isEmpty()) broken--;
+                units[unitAfter++] = null;
+            }
+
+            if(statement != null || found.size() > errors) {              // a unit without a statement is junk up to the end
+                List<Diagnostic> diagnostics = found.size() > errors
+                                             ? new ArrayList<>(found.subList(errors, found.size()))
+                                             : Collections.emptyList();
+                if(!diagnostics.isEmpty()) broken++;
+
+                if(unitGap == unitAfter) growUnits();
+                units[unitGap++] = new Unit(statement, diagnostics, end);
+            }
+
+            if(statement == null || lined) return;
+        }
+    }
+
+    private void rescan() {
+        String source = source();
+        TableScanner scanner = new TableScanner(source, source.toCharArray(), 1, true);
+        scanner.trackStarts();
+        scanner.scan(0, source.length());
+        unclosed = scanner.state() != TableScanner.CODE;
+        scanner.finish();
+
+        List<Token> scanned = scanner.tokens();
+        count = scanned.size() + 1;
+        tokens = new Token[count + 64];                                     // room for a few edits before it has to grow
+        starts = new int[tokens.length];
+        for(int i = 0; i < scanned.size(); ++i) {
+            tokens[i] = scanned.get(i);
+            starts[i] = scanner.start(i);
+        }
+
+        tokens[count - 1] = new Token(TokenType.EOF, "", null, scanner.line());
+        starts[count - 1] = source.length();
+        gap = count;
+        after = tokens.length;
+
+        lexErrors = scanner.errors();
+    }
+
+    private void reparse() {
+        units = new Unit[units.length];
+        unitGap = 0;
+        unitAfter = units.length;
+        broken = 0;
+        reparse(0, count, true);
+    }
+
+    private Token token(int index) {
+        return tokens[index < gap ? index : index - gap + after];
+    }
+
+    private int start(int index) {
+        return index < gap ? starts[index] : starts[index - gap + after] + length();
+    }
+
+    private int end(int index) {
+        return start(index) + token(index).lexeme.length();
+    }
+
+    // moves the gap to just before index, whatever crosses it switches between real and relative offsets
+    private void moveGap(int index) {
+        int length = length();
+
+        while(gap > index) {                                                // cleared first, with no gap left it's the same slot
+            Token token = tokens[--gap];
+            tokens[gap] = null;
+            tokens[--after] = token;
+            starts[after] = starts[gap] - length;
+        }
+
+        while(gap < index) {
+            Token token = tokens[after];
+            tokens[after] = null;
+            tokens[gap] = token;
+            starts[gap++] = starts[after++] + length;
+        }
+    }
+
+    private void growTokens(int needed) {
+        int behind = tokens.length - after;
+        int capacity = Math.max(tokens.length * 2, count + needed);
+
+        Token[] grownTokens = new Token[capacity];
+        int[] grownStarts = new int[capacity];
+        System.arraycopy(tokens, 0, grownTokens, 0, gap);
+        System.arraycopy(starts, 0, grownStarts, 0, gap);
+        System.arraycopy(tokens, after, grownTokens, capacity - behind, behind);
+        System.arraycopy(starts, after, grownStarts, capacity - behind, behind);
+
+        tokens = grownTokens;
+        starts = grownStarts;
+        after = capacity - behind;
+    }
+
+    private Unit unit(int index) {
+        return units[index < unitGap ? index : index - unitGap + unitAfter];
+    }
+
+    private int unitEnd(int index) {
+        return index < unitGap ? units[index].end : units[index - unitGap + unitAfter].end + count;
+    }
+
+    // the statement the token is part of, or how many there are if it's after all of them
+    private int unitAt(int token) {
+        int low = 0, high = unitGap + units.length - unitAfter;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(unitEnd(middle) <= token) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    // same as moveGap, ends behind the gap count back from the last token
+    private void moveUnitGap(int index) {
+        while(unitGap > index) {
+            Unit unit = units[--unitGap];
+            units[unitGap] = null;
+            units[--unitAfter] = unit;
+            unit.end -= count;
+        }
+
+        while(unitGap < index) {
+            Unit unit = units[unitAfter];
+            units[unitAfter++] = null;
+            units[unitGap++] = unit;
+            unit.end += count;
+        }
+    }
+
+    private void growUnits() {
+        int behind = units.length - unitAfter;
+        Unit[] grown = new Unit[units.length * 2];
+        System.arraycopy(units, 0, grown, 0, unitGap);
+        System.arraycopy(units, unitAfter, grown, grown.length - behind, behind);
+
+        units = grown;
+        unitAfter = grown.length - behind;
+    }
+
+    private void replaceText(int offset, int removed, String inserted) {
+        if(offset < textGap) {
+            int moved = textGap - offset;
+            System.arraycopy(text, offset, text, textAfter - moved, moved);
+            textAfter -= moved;
+        } else if(offset > textGap) {
+            int moved = offset - textGap;
+            System.arraycopy(text, textAfter, text, textGap, moved);
+            textAfter += moved;
+        }
+
+        textGap = offset;
+        textAfter += removed;
+
+        if(textAfter - textGap < inserted.length()) {
+            int behind = text.length - textAfter;
+            char[] grown = new char[Math.max(text.length * 2, length() + inserted.length())];
+            System.arraycopy(text, 0, grown, 0, textGap);
+            System.arraycopy(text, textAfter, grown, grown.length - behind, behind);
+            textAfter = grown.length - behind;
+            text = grown;
+        }
+
+        inserted.getChars(0, inserted.length(), text, textGap);
+        textGap += inserted.length();
+        source = null;
+    }
+
+    // [from, to) of the text
+    private String text(int from, int to) {
+        if(to <= textGap) return new String(text, from, to - from);
+        if(from >= textGap) return new String(text, from - textGap + textAfter, to - from);
+
+        char[] chars = new char[to - from];
+        System.arraycopy(text, from, chars, 0, textGap - from);
+        System.arraycopy(text, textAfter, chars, textGap - from, to - textGap);
+        return new String(chars);
+    }
+
+    // just past the first new line at or after from, or the end of the text
+    private int nextLine(int from) {
+        int length = length();
+        for(int i = from; i < length; ++i) {
+            if(text[i < textGap ? i : i - textGap + textAfter] == '\n') return i + 1;
+        }
+
+        return length;
+    }
+
+    // how far past its end the lexer looked to decide where a token stops, numbers check for a '.' and a digit,
+    // and identifiers, '/' and anything that could take an '=' would grow if the next character changed
+    private static int lookahead(Token token) {
+        switch(token.type) {
+            case NUMBER: return 2;
+            case STRING: case LEFT_PAREN: case RIGHT_PAREN: case LEFT_BRACE: case RIGHT_BRACE: case COMMA: case DOT:
+            case MINUS: case PLUS: case SEMICOLON: case STAR: case QUESTION_MARK: case COLON:
+            case BANG_EQUAL: case EQUAL_EQUAL: case GREATER_EQUAL: case LESS_EQUAL:
+                return 0;
+            default: return 1;
+        }
+    }
+
+    // a top level statement and the broken ones the parser skipped in front of it, or just those at the very end
+    private static class Unit {
+        final Stmt statement;                                               // null for the junk at the end
+        final List<Diagnostic> diagnostics;
+        int end;                                                            // one past its last token (or EOF), counted back from the end behind the gap
+
+        Unit(Stmt statement, List<Diagnostic> diagnostics, int end) {
+            this.statement = statement;
+            this.diagnostics = diagnostics;
+            this.end = end;
+        }
+    }
+}
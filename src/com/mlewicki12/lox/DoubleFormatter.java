@@ -0,0 +1,174 @@
+
+package com.mlewicki12.lox;
+
+import java.util.Random;
+
+/*
+ * prints numbers the way lox always has (Double.toString, minus a trailing .0) without making any Strings: the
+ * digits go straight into the caller's buffer
+ * for anything Double.toString writes without an exponent (1e-3 <= |d| < 1e7) it looks for the shortest decimal
+ * that reads back as the same double, trying 1, 2, 3... digits after the point, where d * 10^k is worked out exactly
+ * as M * 5^k / 2^t (d = M * 2^e, t = -e - k) in 128 bits, so the candidate and the round trip check are exact
+ * integer maths instead of more floating point
+ * everything with an exponent (and NaN, infinity) is left to Double.toString
+ */
+final class DoubleFormatter {
+    static final int MAX_LENGTH = 24;                               // -0.001 and 17 significant digits, with room
+
+    private static final long[] FIVES = new long[21];
+    private static final long[] TENS = new long[19];
+    private static final byte[] PAIRS = new byte[200];              // "00" to "99", two digits per division
+    private static final long MANTISSA = (1L << 52) - 1;
+
+    static {
+        FIVES[0] = 1;
+        TENS[0] = 1;
+        for(int i = 1; i < FIVES.length; ++i) FIVES[i] = FIVES[i - 1] * 5;
+        for(int i = 1; i < TENS.length; ++i) TENS[i] = TENS[i - 1] * 10;
+
+        for(int i = 0; i < 100; ++i) {
+            PAIRS[i * 2] = (byte)('0' + i / 10);
+            PAIRS[i * 2 + 1] = (byte)('0' + i % 10);
+        }
+    }
+
+    private DoubleFormatter() {
+    }
+
+    // writes value at out[at], returning where it ended, or -1 if it's one for Double.toString
+    static int write(double value, byte[] out, int at) {
+        long bits = Double.doubleToRawLongBits(value);
+        double abs = Math.abs(value);
+
+        if(abs != 0 && !(abs >= 1e-3 && abs < 1e7)) return -1;     // exponent form, NaN and infinity
+
+        if(bits < 0) out[at++] = '-';
+        if(abs == (long)abs) return integer((long)abs, out, at);
+
+        long m = (bits & MANTISSA) | (1L << 52);                    // abs = m * 2^e, always a normal in this range
+        int e = (int)((bits >>> 52) & 0x7ff) - 1075;
+        boolean narrow = (bits & MANTISSA) == 0;                    // a power of two, the gap below is half as wide
+
+        for(int k = 1; k < FIVES.length; ++k) {
+            int t = -e - k;
+            if(t <= 0 || t >= 63) return -1;
+
+            long five = FIVES[k];
+            long high = Math.multiplyHigh(m, five);                 // m * 5^k, < 2^100
+            long low = m * five;
+
+            long floor = (high << (64 - t)) | (low >>> t);          // abs * 10^k, split into whole part and remainder
+            long rest = low & ((1L << t) - 1);
+            long below = rest;                                      // distance to floor, and to floor + 1, in 2^-t
+            long above = (1L << t) - rest;
+
+            // a decimal reads back as abs if it's within half an ulp, which is 5^k / 2 here (5^k / 4 below a power
+            // of two), 5^k is odd so it can never land on the edge
+            boolean down = floor > 0 && below <= (narrow ? five >> 2 : five >> 1);
+            boolean up = above <= five >> 1;
+
+            if(down && (!up || below <= above)) return fraction(floor, k, out, at);
+            if(up) return fraction(floor + 1, k, out, at);
+        }
+
+        return -1;
+    }
+
+    private static int integer(long value, byte[] out, int at) {
+        int end = at + digits(value);
+        digits(value, out, at, end);
+        return end;
+    }
+
+    // digits of value with the point k from the end, padded out to at least 0.something
+    private static int fraction(long value, int k, byte[] out, int at) {
+        int length = Math.max(digits(value), k + 1);
+        int point = at + length - k;
+        long whole = k < TENS.length ? value / TENS[k] : 0;           // value has 17 digits at most
+
+        digits(whole, out, at, point);
+        out[point] = '.';
+        digits(k < TENS.length ? value - whole * TENS[k] : value, out, point + 1, point + 1 + k);
+        return point + 1 + k;
+    }
+
+    // fills out[from, to) with value, right aligned and zero padded
+    private static void digits(long value, byte[] out, int from, int to) {
+        int position = to;
+        while(position - from >= 2) {
+            int pair = (int)(value % 100);
+            value /= 100;
+            out[--position] = PAIRS[pair * 2 + 1];
+            out[--position] = PAIRS[pair * 2];
+        }
+
+        if(position > from) out[--position] = (byte)('0' + value % 10);
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while(digits < TENS.length && value >= TENS[digits]) digits++;
+        return digits;
+    }
+
+    // how lox printed numbers before, the reference for the check below
+    private static String stringify(double value) {
+        String text = Double.toString(value);
+        return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+    }
+
+    // compares against the old stringify over random doubles and times both: DoubleFormatter [count]
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        double[] values = new double[count];
+        Random random = new Random(42);
+
+        for(int i = 0; i < count; ++i) {
+            switch(i % 4) {
+                case 0: values[i] = Double.longBitsToDouble(random.nextLong()); break;      // anything at all
+                case 1: values[i] = Math.pow(10, random.nextDouble() * 12 - 4); break;      // around the plain range
+                case 2: values[i] = random.nextInt(1_000_000) / Math.pow(10, random.nextInt(8)); break; // short decimals
+                default: values[i] = -random.nextDouble(); break;
+            }
+        }
+
+        byte[] buffer = new byte[MAX_LENGTH];
+        int mismatches = 0;
+        for(double value : values) {
+            int end = write(value, buffer, 0);
+            String expected = stringify(value);
+            String actual = end < 0 ? expected : new String(buffer, 0, end);
+
+            if(!actual.equals(expected)) {
+                if(mismatches++ < 10) System.out.println(value + ": " + actual + " instead of " + expected);
+            }
+        }
+
+        System.out.println(count + " values, " + mismatches + " mismatches");
+
+        // only time the ones this handles, the rest cost the same Double.toString either way
+        int plain = 0;
+        for(double value : values) {
+            if(write(value, buffer, 0) >= 0) values[plain++] = value;
+        }
+
+        for(int round = 0; round < 5; ++round) {
+            long start = System.nanoTime();
+            long sink = 0;
+            for(int i = 0; i < plain; ++i) {
+                sink += write(values[i], buffer, 0);
+            }
+
+            long formatter = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < plain; ++i) {
+                sink += stringify(values[i]).length();
+            }
+
+            long strings = System.nanoTime() - start;
+            System.out.printf("%d plain values: formatter %.1f ns/value, stringify %.1f ns/value (%d)%n",
+                              plain, (double)formatter / plain, (double)strings / plain, sink);
+        }
+    }
+}
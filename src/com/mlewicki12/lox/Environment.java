@@ -0,0 +1,41 @@
+
+package com.mlewicki12.lox;
+
+/*
+ * the locals of one block or one call, each in the slot the Resolver gave it, chained to the environment around it
+ * blocks that don't declare anything never get one
+ * a number is kept unboxed in numbers, with NUMBER in its slot in values, so numeric locals and arguments never
+ * allocate
+ * nothing is final: the Interpreter hands a finished environment out again for the next call or block that doesn't
+ * let a closure keep hold of it, growing the arrays if that one needs more slots
+ */
+final class Environment {
+    static final Object NUMBER = new Object();
+
+    Environment enclosing;
+    Object[] values;
+    double[] numbers;
+
+    Environment(Environment enclosing, int slots) {
+        this.enclosing = enclosing;
+        this.values = new Object[slots];
+        this.numbers = new double[slots];
+    }
+
+    void reuse(Environment enclosing, int slots) {
+        this.enclosing = enclosing;
+        if(values.length < slots) {
+            values = new Object[slots];
+            numbers = new double[slots];
+        }
+    }
+
+    Environment ancestor(int depth) {
+        Environment environment = this;
+        for(int i = 0; i < depth; ++i) {
+            environment = environment.enclosing;
+        }
+
+        return environment;
+    }
+}
@@ -0,0 +1,44 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * the top level variables: a name gets an index the first time the Resolver comes across it, and after that the
+ * Interpreter only ever touches values[index]
+ * the scanners hand out one String per name (see Names), so the lookup here mostly compares a string with itself
+ * a global that's been named but not defined yet holds UNDEFINED, reading or assigning it is a runtime error
+ * numbers are kept unboxed in numbers the same way Environment does it
+ */
+final class Globals {
+    static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    Object[] values = new Object[64];           // can be swapped for a bigger one whenever a name is added
+    double[] numbers = new double[64];
+
+    int index(String name) {
+        Integer index = indices.get(name);
+        if(index != null) return index;
+
+        index = names.size();
+        if(index == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        }
+
+        values[index] = UNDEFINED;
+        names.add(name);
+        indices.put(name, index);
+        return index;
+    }
+
+    String name(int index) {
+        return names.get(index);
+    }
+}
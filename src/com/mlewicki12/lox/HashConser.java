@@ -0,0 +1,328 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * hash-consing for parsed trees: structurally identical pure subtrees are merged into a single node, so a generated
+ * expression that repeats the same subexpression a thousand times holds it once, and the Interpreter can work it
+ * out once per evaluation
+ * two nodes are the same if they're the same kind with the same operator or literal and the very same children,
+ * children get merged first, so comparing a node is constant work however big the subtree under it is
+ * operators are compared by type, not line, a merged node keeps the tokens of the first copy that was seen
+ * every statement in a program goes through the same table, so the same subexpression in two statements is shared too
+ */
+final class HashConser {
+    private final Map<Key, Expr> table = new HashMap<>();
+    private final Map<Expr, Expr> merged = new IdentityHashMap<>();                 // every node, to what it became
+    private final Set<Expr> impure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private HashConser() {
+    }
+
+    // statements have to be resolved already, rebuilt nodes keep what the Resolver worked out
+    static Dag share(List<Stmt> statements) {
+        HashConser conser = new HashConser();
+        List<Expr> roots = new ArrayList<>();
+        List<Stmt> merged = conser.merge(statements, roots);
+
+        return new Dag(merged, roots, conser.sharedNodes(roots));
+    }
+
+    // the same list if nothing in it changed, roots collects every expression the statements hold
+    private List<Stmt> merge(List<Stmt> statements, List<Expr> roots) {
+        List<Stmt> merged = new ArrayList<>(statements.size());
+        boolean changed = false;
+
+        for(Stmt statement : statements) {
+            Stmt shared = merge(statement, roots);
+            merged.add(shared);
+            changed |= shared != statement;
+        }
+
+        return changed ? merged : statements;
+    }
+
+    private Stmt merge(Stmt statement, List<Expr> roots) {
+        if(statement instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block)statement;
+            List<Stmt> merged = merge(block.statements, roots);
+            if(merged == block.statements) return block;
+
+            Stmt.Block rebuilt = new Stmt.Block(merged);
+            rebuilt.slots = block.slots;
+            rebuilt.pooled = block.pooled;
+            return rebuilt;
+        }
+
+        if(statement instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function)statement;
+            List<Stmt> merged = merge(function.body, roots);
+            if(merged == function.body) return function;
+
+            Stmt.Function rebuilt = new Stmt.Function(function.name, function.params, merged);
+            rebuilt.depth = function.depth;
+            rebuilt.slot = function.slot;
+            rebuilt.slots = function.slots;
+            rebuilt.pooled = function.pooled;
+            return rebuilt;
+        }
+
+        if(statement instanceof Stmt.Class) {
+            Stmt.Class klass = (Stmt.Class)statement;
+            List<Stmt.Function> methods = new ArrayList<>(klass.methods.size());
+            boolean changed = false;
+            for(Stmt.Function method : klass.methods) {
+                Stmt.Function shared = (Stmt.Function)merge(method, roots);
+                methods.add(shared);
+                changed |= shared != method;
+            }
+
+            if(!changed) return klass;
+
+            Stmt.Class rebuilt = new Stmt.Class(klass.name, klass.superclass, methods);
+            rebuilt.depth = klass.depth;
+            rebuilt.slot = klass.slot;
+            return rebuilt;
+        }
+
+        if(statement instanceof Stmt.Return) {
+            Stmt.Return ret = (Stmt.Return)statement;
+            if(ret.value == null) return ret;
+
+            Expr shared = merge(ret.value);
+            roots.add(shared);
+            return shared == ret.value ? ret : new Stmt.Return(ret.keyword, shared);
+        }
+
+        if(statement instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)statement;
+            if(var.initializer == null) return var;
+
+            Expr shared = merge(var.initializer);
+            roots.add(shared);
+            if(shared == var.initializer) return var;
+
+            Stmt.Var rebuilt = new Stmt.Var(var.name, shared);
+            rebuilt.depth = var.depth;
+            rebuilt.slot = var.slot;
+            return rebuilt;
+        }
+
+        Expr expression = statement instanceof Stmt.Print ? ((Stmt.Print)statement).expression : ((Stmt.Expression)statement).expression;
+        Expr shared = merge(expression);
+        roots.add(shared);
+        if(shared == expression) return statement;
+
+        return statement instanceof Stmt.Print ? new Stmt.Print(shared) : new Stmt.Expression(shared);
+    }
+
+    // walks the tree bottom up with its own stack, a node is merged once all of its children are
+    private Expr merge(Expr root) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        while(!pending.isEmpty()) {
+            Expr node = pending.peek();
+            if(merged.containsKey(node)) {
+                pending.pop();
+                continue;
+            }
+
+            Expr[] children = children(node);
+            boolean ready = true;
+            for(Expr child : children) {
+                if(!merged.containsKey(child)) {
+                    pending.push(child);
+                    ready = false;
+                }
+            }
+
+            if(ready) {
+                pending.pop();
+                merged.put(node, intern(node, children));
+            }
+        }
+
+        return merged.get(root);
+    }
+
+    private Expr intern(Expr node, Expr[] children) {
+        Expr[] replaced = new Expr[children.length];
+        boolean pure = !(node instanceof Expr.Exit || node instanceof Expr.Variable || node instanceof Expr.Assign
+                         || node instanceof Expr.Call || node instanceof Expr.Get || node instanceof Expr.Set
+                         || node instanceof Expr.Super || node instanceof Expr.This);
+        boolean changed = false;
+
+        for(int i = 0; i < children.length; ++i) {
+            replaced[i] = merged.get(children[i]);
+            pure &= !impure.contains(replaced[i]);
+            changed |= replaced[i] != children[i];
+        }
+
+        Expr rebuilt = changed ? rebuild(node, replaced) : node;
+        if(!pure) {                                                 // has to run every time it's reached, keep it apart
+            impure.add(rebuilt);
+            return rebuilt;
+        }
+
+        Expr existing = table.putIfAbsent(new Key(rebuilt, replaced), rebuilt);
+        return existing == null ? rebuilt : existing;
+    }
+
+    // nodes that more than one parent (or statement) points at, except literals, which are cheaper to read than to
+    // look up
+    private Set<Expr> sharedNodes(List<Expr> roots) {
+        Map<Expr, Integer> parents = new IdentityHashMap<>();
+        Set<Expr> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Expr> pending = new ArrayDeque<>();
+
+        for(Expr root : roots) {
+            reached(root, parents, shared, pending);
+        }
+
+        while(!pending.isEmpty()) {
+            for(Expr child : children(pending.pop())) {
+                reached(child, parents, shared, pending);
+            }
+        }
+
+        return shared;
+    }
+
+    private static void reached(Expr node, Map<Expr, Integer> parents, Set<Expr> shared, Deque<Expr> pending) {
+        Integer count = parents.get(node);
+        if(count == null) {
+            parents.put(node, 1);
+            pending.push(node);                                     // only walk under a node the first time it's found
+        } else {
+            parents.put(node, count + 1);
+            if(!(node instanceof Expr.Literal)) shared.add(node);
+        }
+    }
+
+    static Expr[] children(Expr expr) {
+        if(expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            return new Expr[] { ternary.condition, ternary.left, ternary.right };
+        } else if(expr instanceof Expr.Binary) {
+            return new Expr[] { ((Expr.Binary)expr).left, ((Expr.Binary)expr).right };
+        } else if(expr instanceof Expr.Grouping) {
+            return new Expr[] { ((Expr.Grouping)expr).expression };
+        } else if(expr instanceof Expr.Unary) {
+            return new Expr[] { ((Expr.Unary)expr).right };
+        } else if(expr instanceof Expr.Assign) {
+            return new Expr[] { ((Expr.Assign)expr).value };
+        } else if(expr instanceof Expr.Get) {
+            return new Expr[] { ((Expr.Get)expr).object };
+        } else if(expr instanceof Expr.Set) {
+            return new Expr[] { ((Expr.Set)expr).object, ((Expr.Set)expr).value };
+        } else if(expr instanceof Expr.Call) {
+            List<Expr> arguments = ((Expr.Call)expr).arguments;
+            Expr[] children = new Expr[arguments.size() + 1];
+            children[0] = ((Expr.Call)expr).callee;
+            for(int i = 0; i < arguments.size(); ++i) {
+                children[i + 1] = arguments.get(i);
+            }
+
+            return children;
+        }
+
+        return new Expr[0];
+    }
+
+    private static Expr rebuild(Expr node, Expr[] children) {
+        if(node instanceof Expr.Ternary) {
+            return new Expr.Ternary(children[0], children[1], children[2]);
+        } else if(node instanceof Expr.Binary) {
+            return new Expr.Binary(children[0], ((Expr.Binary)node).operator, children[1]);
+        } else if(node instanceof Expr.Grouping) {
+            return new Expr.Grouping(children[0]);
+        } else if(node instanceof Expr.Assign) {
+            Expr.Assign assign = new Expr.Assign(((Expr.Assign)node).name, children[0]);
+            assign.depth = ((Expr.Assign)node).depth;
+            assign.slot = ((Expr.Assign)node).slot;
+            return assign;
+        } else if(node instanceof Expr.Get) {
+            Expr.Get get = new Expr.Get(children[0], ((Expr.Get)node).name);
+            get.cache = ((Expr.Get)node).cache;
+            return get;
+        } else if(node instanceof Expr.Set) {
+            Expr.Set set = new Expr.Set(children[0], ((Expr.Set)node).name, children[1]);
+            set.cache = ((Expr.Set)node).cache;
+            return set;
+        } else if(node instanceof Expr.Call) {
+            List<Expr> arguments = new ArrayList<>(Arrays.asList(children).subList(1, children.length));
+            return new Expr.Call(children[0], ((Expr.Call)node).paren, arguments);
+        }
+
+        return new Expr.Unary(((Expr.Unary)node).operator, children[0]);
+    }
+
+    // the merged program, and the nodes in it that are reachable through more than one parent
+    static class Dag {
+        final List<Stmt> statements;
+        final List<Expr> roots;                                     // every expression a statement holds, in order
+        final Set<Expr> shared;
+
+        Dag(List<Stmt> statements, List<Expr> roots, Set<Expr> shared) {
+            this.statements = statements;
+            this.roots = roots;
+            this.shared = shared;
+        }
+    }
+
+    private static class Key {
+        final Class<?> kind;
+        final TokenType operator;
+        final Object value;
+        final Expr[] children;                                      // compared by identity, they're merged already
+        final int hash;
+
+        Key(Expr node, Expr[] children) {
+            this.kind = node.getClass();
+            this.operator = node instanceof Expr.Binary ? ((Expr.Binary)node).operator.type
+                          : node instanceof Expr.Unary ? ((Expr.Unary)node).operator.type
+                          : null;
+            this.value = node instanceof Expr.Literal ? ((Expr.Literal)node).value : null;
+            this.children = children;
+
+            int hash = Objects.hash(kind, operator, value);
+            for(Expr child : children) {
+                hash = hash * 31 + System.identityHashCode(child);
+            }
+
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key)) return false;
+
+            Key key = (Key)other;
+            if(hash != key.hash || kind != key.kind || operator != key.operator) return false;
+            if(!Objects.equals(value, key.value)) return false;     // Double.equals, so 0 and -0 stay apart
+
+            for(int i = 0; i < children.length; ++i) {
+                if(children[i] != key.children[i]) return false;
+            }
+
+            return true;
+        }
+    }
+}
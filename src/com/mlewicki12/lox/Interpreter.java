@@ -1,18 +1,316 @@
 
 package com.mlewicki12.lox;
 
-public class Interpreter implements Expr.Visitor<Object> {
-    private final OperatorMap operatorMap = new OperatorMap();
+import com.mlewicki12.lox.OperatorMap.Operator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * values move around as Objects, except numbers, which are kept unboxed in the number register while an expression
+ * is being worked on: a visit that produces a number stores it there and returns UNBOXED, and it only becomes a
+ * Double again when something has to hold on to it (an operator, the memo), so 1 + 2 * 3 never allocates, and a
+ * number result is printed straight out of the register
+ * variables have all been placed by the Resolver, a global is an index into Globals and a local is so many
+ * environments out and a slot in that one, so nothing is ever looked up by name, and a number stored in one stays
+ * unboxed there too
+ * a statement returns how it finished: null to carry on, RETURN with the value in returned (or the register), or
+ * TAIL_CALL with the next call set up in nextFunction and nextFrame, so return never throws and a call in tail
+ * position is run by the call already on the stack instead of on top of it
+ * frames that no closure can hold on to (the Resolver marks them pooled) go back on the free list when they're done
+ * with, so after warming up a call allocates nothing at all
+ * every property site has a PropertyCache keyed on the instance's shape, so a field is a slot read and a method
+ * call goes straight to the method, which gets the instance as this without ever being bound
+ */
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+    private static final Object UNBOXED = new Object();
+    private static final Object RETURN = new Object();
+    private static final Object TAIL_CALL = new Object();
+    private static final Object CALL = new Object();
+    private static final int CHECK_INTERVAL = 1024;                 // nodes between looking at the limits and the clock
+
+    // for embedders that want exit to end a run instead of the process, it throws ExitRequest for them to catch
+    static final Runnable RAISE_EXIT = () -> { throw new ExitRequest(); };
+
+    private final OperatorMap operatorMap;
+    private OperatorMap.Snapshot operators;     // cached, and checked against the map's version before every use
+    private final OutputSink out;
+    private final Runnable exit;
+
+    private final Globals globals = new Globals();
+    private Environment environment;            // the innermost block with locals, null at the top level
+
+    private double number;                      // the value of the last expression that returned UNBOXED
+
+    private Object returned;                    // the value of the return statement that finished with RETURN
+    private LoxFunction nextFunction;           // a call that's been set up, for whoever asked for it to make
+    private Environment nextFrame;
+    private Environment[] free = new Environment[16];       // finished with, ready for the next call or block
+    private int freeCount = 0;
+
+    private Set<Expr> shared;                   // nodes of a hash-consed tree that more than one parent reaches,
+    private final Map<Expr, Object> memo = new IdentityHashMap<>();    // and their values for this evaluation
+
+    private final Statistics statistics = new Statistics();
+
+    private Limits limits = Limits.NONE;
+    private int countdown = CHECK_INTERVAL;     // nodes left until the next check
+    private int chunk = CHECK_INTERVAL;         // how many the countdown started at
+    private long evaluated;                     // nodes evaluated this run, up to the start of the chunk
+    private long deadline;
+
+    Interpreter() {
+        this(OutputSink.stdout(), () -> System.exit(0));    // not an error, so I should be able to get away with system code 0
+    }
+
+    // embedders (like the server) give every interpreter its own output, and decide what exit means for them
+    Interpreter(OutputSink out, Runnable exit) {
+        this(OperatorMap.standard(), out, exit);
+    }
+
+    Interpreter(OperatorMap operatorMap, OutputSink out, Runnable exit) {
+        this.operatorMap = operatorMap;
+        this.out = out;
+        this.exit = exit;
+    }
+
+    // one run (a script, a repl line), the limits count over all of it and the first runtime error ends it
+    // results are buffered, whoever runs the interpreter flushes once it's done with a script or a line
+    void interpret(List<Stmt> statements) {
+        begin();
 
-    void interpret(Expr expr) {
         try {
-            Object value = evaluate(expr);
-            System.out.println(stringify(value));
+            for(Stmt statement : statements) {
+                execute(statement);
+            }
         } catch(RuntimeError error) {
             Lox.runtimeError(error);
+        } catch(StackOverflowError error) {
+            Lox.runtimeError(new RuntimeError(null, "stack overflow"));
         }
     }
 
+    // for running statements as they're parsed: begin the run once, then hand them over one at a time
+    void begin() {
+        evaluated = 0;
+        deadline = limits.timeout > 0 ? System.nanoTime() + limits.timeout * 1_000_000 : 0;
+        countdown = chunk = nextChunk();
+    }
+
+    void interpret(Stmt statement) {
+        try {
+            execute(statement);
+        } catch(RuntimeError error) {
+            Lox.runtimeError(error);
+        } catch(StackOverflowError error) {
+            Lox.runtimeError(new RuntimeError(null, "stack overflow"));
+        }
+    }
+
+    void flush() {
+        out.flush();
+    }
+
+    // what anything run on this interpreter gets resolved against
+    Globals globals() {
+        return globals;
+    }
+
+    // how the property caches have done on everything run so far
+    Statistics statistics() {
+        return statistics;
+    }
+
+    Interpreter limit(Limits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    // a program out of HashConser, every shared node is only worked out once however many places it's used in
+    void interpret(HashConser.Dag dag) {
+        shared = dag.shared;
+        try {
+            interpret(dag.statements);
+        } finally {
+            shared = null;
+            memo.clear();
+        }
+    }
+
+    @Override
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.slots == 0) return execute(stmt.statements);       // nothing declared, so no environment either
+
+        Environment previous = environment;
+        Environment block = stmt.pooled ? acquire(previous, stmt.slots) : new Environment(previous, stmt.slots);
+        Object completion;
+
+        environment = block;
+        try {
+            completion = execute(stmt.statements);
+        } finally {
+            environment = previous;
+        }
+
+        if(stmt.pooled) release(block, stmt.slots);                 // not on an error, the pool just makes another
+        return completion;
+    }
+
+    @Override
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateRaw(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, environment);
+        if(stmt.depth < 0) {
+            globals.values[stmt.slot] = function;
+        } else {
+            environment.values[stmt.slot] = function;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStmt(Stmt.Print stmt) {
+        Object value = evaluateRaw(stmt.expression);
+        if(value == UNBOXED) {
+            out.append(number);                                     // straight from the register, never boxed
+        } else {
+            print(value);
+        }
+
+        out.newline();
+        return null;
+    }
+
+    // the value is followed down through groupings and ?: branches, and if that ends at a call of a lox function
+    // its frame is filled in here and the call is left for the one running this function to make
+    @Override
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        Expr value = stmt.value;
+        for(;;) {
+            if(value instanceof Expr.Grouping) {
+                value = ((Expr.Grouping)value).expression;
+            } else if(value instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary)value;
+                value = LoxValue.isTruthy(evaluateRaw(ternary.condition)) ? ternary.left : ternary.right;
+            } else {
+                break;
+            }
+        }
+
+        if(value instanceof Expr.Call) {
+            Object result = prepare((Expr.Call)value);
+            if(result == CALL) return TAIL_CALL;                    // leave the call that's been set up for the caller
+
+            returned = result;
+            return RETURN;
+        }
+
+        returned = value == null ? null : evaluateRaw(value);      // may be UNBOXED, nothing touches the register
+        return RETURN;                                              // on the way back out to the call
+    }
+
+    @Override
+    public Object visitClassStmt(Stmt.Class stmt) {
+        LoxClass superclass = null;
+        if(stmt.superclass != null) {
+            Object value = box(evaluateRaw(stmt.superclass), number);
+            if(!(value instanceof LoxClass)) throw new RuntimeError(stmt.superclass.name, "superclass must be a class");
+            superclass = (LoxClass)value;
+        }
+
+        Environment closure = environment;
+        if(superclass != null) {                                    // once per class, never per call
+            closure = new Environment(environment, 1);
+            closure.values[0] = superclass;
+        }
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for(Stmt.Function method : stmt.methods) {
+            String name = method.name.lexeme;
+            methods.put(name, new LoxFunction(method, closure, name.equals("init"), null));
+        }
+
+        LoxClass klass = new LoxClass(stmt.name.lexeme, superclass, methods);
+        if(stmt.depth < 0) {
+            globals.values[stmt.slot] = klass;
+        } else {
+            environment.values[stmt.slot] = klass;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitVarStmt(Stmt.Var stmt) {
+        Object value = stmt.initializer == null ? null : evaluateRaw(stmt.initializer);
+        if(stmt.depth < 0) {
+            store(globals.values, globals.numbers, stmt.slot, value);
+        } else {
+            store(environment.values, environment.numbers, stmt.slot, value);  // always declared in the innermost block
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluateRaw(expr.value);
+        if(expr.depth >= 0) {
+            Environment target = environment.ancestor(expr.depth);
+            store(target.values, target.numbers, expr.slot, value);
+            return value;
+        }
+
+        if(globals.values[expr.slot] == Globals.UNDEFINED) throw undefined(expr.name);
+        store(globals.values, globals.numbers, expr.slot, value);
+        return value;
+    }
+
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        if(expr.depth >= 0) {
+            Environment source = environment.ancestor(expr.depth);
+            return load(source.values, source.numbers, expr.slot);
+        }
+
+        Object value = globals.values[expr.slot];
+        if(value == Globals.UNDEFINED) throw undefined(expr.name);
+        return value == Environment.NUMBER ? load(globals.values, globals.numbers, expr.slot) : value;
+    }
+
+    // UNBOXED goes in as a number, so it stays a double
+    private void store(Object[] values, double[] numbers, int slot, Object value) {
+        if(value == UNBOXED) {
+            values[slot] = Environment.NUMBER;
+            numbers[slot] = number;
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    private Object load(Object[] values, double[] numbers, int slot) {
+        Object value = values[slot];
+        if(value != Environment.NUMBER) return value;
+
+        number = numbers[slot];
+        return UNBOXED;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "undefined variable '" + name.lexeme + "'");
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -20,69 +318,471 @@ public class Interpreter implements Expr.Visitor<Object> {
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
+        return evaluateRaw(expr.expression);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        Object right = evaluateRaw(expr.right);
+        int type = right == UNBOXED ? LoxValue.NUMBER : LoxValue.tag(right);
+
+        switch(expr.operator.type) {
+            case MINUS:
+                if(type != LoxValue.NUMBER) break;
+                number = -(right == UNBOXED ? number : (double)right);
+                return UNBOXED;
 
-        return operatorMap.getOperator(getType(right), expr.operator.type, right);
+            case BANG:                                                          // registered types might define their own !
+                if(type >= LoxValue.TYPES) break;
+                return LoxValue.bool(!LoxValue.isTruthy(right));                // UNBOXED is a number, which is truthy
+        }
+
+        Operator operator = operators(type).unary(expr.operator.type, type);
+        return operator == null ? null : checked(operator.run(box(right, number)), expr.operator);
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        if(expr.operator.type == TokenType.COMMA) return sequence(expr);
+
+        Object left = evaluateRaw(expr.left);
+        double l = number;                                                      // grab it before the right side overwrites it
+        Object right = evaluateRaw(expr.right);
+        double r = number;
+
+        int leftType = LoxValue.NUMBER;
+        if(left != UNBOXED) {
+            leftType = LoxValue.tag(left);
+            if(leftType == LoxValue.NUMBER) l = (double)left;
+        }
+
+        int rightType = LoxValue.NUMBER;
+        if(right != UNBOXED) {
+            rightType = LoxValue.tag(right);
+            if(rightType == LoxValue.NUMBER) r = (double)right;
+        }
 
-        return operatorMap.getOperator(getType(left), getType(right), expr.operator.type, left, right);
+        if(leftType == LoxValue.NUMBER && rightType == LoxValue.NUMBER) {       // numbers never leave the registers
+            switch(expr.operator.type) {
+                case MINUS: number = l - r; return UNBOXED;
+                case PLUS: number = l + r; return UNBOXED;
+                case STAR: number = l * r; return UNBOXED;
+                case SLASH: number = l / r; return UNBOXED;
+
+                case GREATER: return LoxValue.bool(l > r);
+                case GREATER_EQUAL: return LoxValue.bool(l >= r);
+                case LESS: return LoxValue.bool(l < r);
+                case LESS_EQUAL: return LoxValue.bool(l <= r);
+
+                // same as Double.equals, so NaN == NaN and 0 != -0 like before
+                case EQUAL_EQUAL: return LoxValue.bool(Double.doubleToLongBits(l) == Double.doubleToLongBits(r));
+                case BANG_EQUAL: return LoxValue.bool(Double.doubleToLongBits(l) != Double.doubleToLongBits(r));
+            }
+        }
+
+        Operator operator = operators(Math.max(leftType, rightType)).binary(expr.operator.type, leftType, rightType);
+        return operator == null ? null : checked(operator.run(box(left, l), box(right, r)), expr.operator);
+    }
+
+    // a, b, c is a left leaning chain of commas, walk down it instead of recursing, then run it front to back
+    private Object sequence(Expr.Binary expr) {
+        List<Expr> rest = new ArrayList<>();
+        Expr first = expr;
+        while(first instanceof Expr.Binary && ((Expr.Binary)first).operator.type == TokenType.COMMA) {
+            rest.add(((Expr.Binary)first).right);
+            first = ((Expr.Binary)first).left;
+        }
+
+        evaluateRaw(first);                                         // the parser already dropped anything pure
+        for(int i = rest.size() - 1; i > 0; --i) {
+            evaluateRaw(rest.get(i));
+        }
+
+        return evaluateRaw(rest.get(0));
     }
 
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
-        Object cond = evaluate(expr.condition);
-        if(isTruthy(cond)) {                    // use lox truthy check to ensure consistency
-            return evaluate(expr.left);         // only evaluate the branch that are applicable
-        } else return evaluate(expr.right);
+        for(;;) {                                                   // follow a ? b : c ? d : e chains without recursing
+            Object cond = evaluateRaw(expr.condition);
+            Expr next = LoxValue.isTruthy(cond) ? expr.left : expr.right;   // use lox truthy check to ensure consistency
+                                                                            // only evaluate the branch that are applicable
+            while(next instanceof Expr.Grouping) next = ((Expr.Grouping)next).expression;
+            if(!(next instanceof Expr.Ternary)) return evaluateRaw(next);
+
+            expr = (Expr.Ternary)next;
+        }
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object result = prepare(expr);
+        if(result != CALL) return result;
+
+        LoxFunction function = nextFunction;
+        Environment frame = nextFrame;
+        nextFunction = null;
+        nextFrame = null;
+        return call(function, frame);
+    }
+
+    // a call of a lox function is only set up, CALL with its frame ready in nextFrame, anything else (a class
+    // without an init) is done here and its value returned
+    // a method called straight off an instance or super is never bound, the instance goes into its frame as this
+    private Object prepare(Expr.Call expr) {
+        if(expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            LoxInstance instance = instance(evaluateRaw(get.object), get.name, "only instances have properties");
+            PropertyCache.Entry entry = property(get.cache, instance.shape, get.name);
+            if(entry.slot >= 0) return prepare(box(load(instance.values, instance.numbers, entry.slot), number), expr);
+
+            return prepare(entry.method, instance, expr);
+        }
+
+        if(expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            return prepare(method(superExpr), (LoxInstance)environment.ancestor(superExpr.depth - 1).values[0], expr);
+        }
+
+        return prepare(box(evaluateRaw(expr.callee), number), expr);
+    }
+
+    private Object prepare(Object callee, Expr.Call expr) {
+        if(callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            return prepare(function, function.receiver, expr);
+        }
+
+        if(!(callee instanceof LoxClass)) throw new RuntimeError(expr.paren, "can only call functions and classes");
+
+        LoxClass klass = (LoxClass)callee;
+        LoxInstance instance = new LoxInstance(klass);
+        LoxFunction initializer = klass.findMethod("init");
+        if(initializer != null) return prepare(initializer, instance, expr);
+
+        if(!expr.arguments.isEmpty()) throw arity(expr, 0);
+        return instance;
+    }
+
+    // the arguments go straight into their slots, after this if it's a method, so there's never a list of them
+    private Object prepare(LoxFunction function, LoxInstance receiver, Expr.Call expr) {
+        Stmt.Function declaration = function.declaration;
+        List<Expr> arguments = expr.arguments;
+        if(arguments.size() != function.arity()) throw arity(expr, function.arity());
+
+        Environment frame = declaration.pooled ? acquire(function.closure, declaration.slots)
+                                               : new Environment(function.closure, declaration.slots);
+        int first = 0;
+        if(receiver != null) frame.values[first++] = receiver;
+
+        for(int i = 0; i < arguments.size(); ++i) {
+            store(frame.values, frame.numbers, first + i, evaluateRaw(arguments.get(i)));
+        }
+
+        nextFunction = function;
+        nextFrame = frame;
+        return CALL;
+    }
+
+    private static RuntimeError arity(Expr.Call expr, int arity) {
+        return new RuntimeError(expr.paren, "expected " + arity + " arguments but got " + expr.arguments.size());
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        LoxInstance instance = instance(evaluateRaw(expr.object), expr.name, "only instances have properties");
+        PropertyCache.Entry entry = property(expr.cache, instance.shape, expr.name);
+        if(entry.slot >= 0) return load(instance.values, instance.numbers, entry.slot);
+
+        return entry.method.bind(instance);                         // only taken off, not called, so it has to be
+    }
+
+    // the value goes in after it's worked out, which may well have added fields to the instance itself
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        LoxInstance instance = instance(evaluateRaw(expr.object), expr.name, "only instances have fields");
+        Object value = evaluateRaw(expr.value);
+
+        Shape shape = instance.shape;
+        PropertyCache.Entry entry = expr.cache.find(shape);
+        if(entry != null) {
+            statistics.hits++;
+        } else {
+            entry = field(shape, expr.name.lexeme);
+            cache(expr.cache, entry);
+        }
+
+        if(entry.next != null) {
+            if(entry.next.size > instance.values.length) grow(instance, entry.next.size);
+            instance.shape = entry.next;
+            statistics.transitions++;
+        }
+
+        store(instance.values, instance.numbers, entry.slot, value);
+        return value;                                               // store leaves the register alone
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        return method(expr).bind((LoxInstance)environment.ancestor(expr.depth - 1).values[0]);
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This expr) {
+        return environment.ancestor(expr.depth).values[expr.slot];
+    }
+
+    private static LoxInstance instance(Object value, Token name, String message) {
+        if(!(value instanceof LoxInstance)) throw new RuntimeError(name, message);
+        return (LoxInstance)value;
+    }
+
+    // what name means on an instance of this shape, fields first, from the site's cache if it's been seen there
+    private PropertyCache.Entry property(PropertyCache cache, Shape shape, Token name) {
+        PropertyCache.Entry entry = cache.find(shape);
+        if(entry != null) {
+            statistics.hits++;
+            return entry;
+        }
+
+        int slot = shape.slot(name.lexeme);
+        if(slot >= 0) {
+            entry = new PropertyCache.Entry(shape, slot, null, null);
+        } else {
+            LoxFunction method = shape.klass.findMethod(name.lexeme);
+            if(method == null) throw new RuntimeError(name, "undefined property '" + name.lexeme + "'");
+            entry = new PropertyCache.Entry(shape, -1, method, null);
+        }
+
+        cache(cache, entry);
+        return entry;
+    }
+
+    // the slot to set, and the shape to move on to first if the field is new
+    private PropertyCache.Entry field(Shape shape, String name) {
+        int slot = shape.slot(name);
+        if(slot >= 0) return new PropertyCache.Entry(shape, slot, null, null);
+
+        Shape next = shape.transition(name);
+        if(next == null) {
+            next = shape.add(name);
+            statistics.shapes++;
+        }
+
+        return new PropertyCache.Entry(shape, shape.size, null, next);
+    }
+
+    // the superclass's root shape stands in for it, so super sites are cached like any other
+    private LoxFunction method(Expr.Super expr) {
+        LoxClass superclass = (LoxClass)environment.ancestor(expr.depth).values[expr.slot];
+        PropertyCache.Entry entry = expr.cache.find(superclass.root);
+        if(entry != null) {
+            statistics.hits++;
+            return entry.method;
+        }
+
+        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        if(method == null) throw new RuntimeError(expr.method, "undefined property '" + expr.method.lexeme + "'");
+
+        cache(expr.cache, new PropertyCache.Entry(superclass.root, -1, method, null));
+        return method;
+    }
+
+    private void cache(PropertyCache cache, PropertyCache.Entry entry) {
+        if(cache.add(entry)) {
+            statistics.misses++;
+        } else {
+            statistics.megamorphic++;
+        }
+    }
+
+    // new instances of the class start out this big from now on
+    private static void grow(LoxInstance instance, int size) {
+        LoxClass klass = instance.shape.klass;
+        int capacity = Math.max(size, instance.values.length * 2);
+        instance.values = Arrays.copyOf(instance.values, capacity);
+        instance.numbers = Arrays.copyOf(instance.numbers, capacity);
+        klass.capacity = Math.max(klass.capacity, capacity);
+    }
+
+    // runs the body, then whatever it tail called in its place, until one of them actually returns
+    private Object call(LoxFunction function, Environment frame) {
+        for(;;) {
+            Stmt.Function declaration = function.declaration;
+            Environment previous = environment;
+            Object completion;
+
+            environment = frame;
+            try {
+                completion = execute(declaration.body);
+            } finally {
+                environment = previous;
+            }
+
+            Object self = function.initializer ? frame.values[0] : null;
+            if(declaration.pooled) release(frame, declaration.slots);      // the next call's arguments are already in
+            if(self != null) return self;                                   // init always comes back with this, and can't
+                                                                            // return anything else, let alone tail call
+
+            if(completion == null) return null;                             // fell off the end
+            if(completion == RETURN) {
+                Object value = returned;
+                returned = null;
+                return value;
+            }
+
+            function = nextFunction;
+            frame = nextFrame;
+            nextFunction = null;
+            nextFrame = null;
+        }
+    }
+
+    private Environment acquire(Environment enclosing, int slots) {
+        if(freeCount == 0) return new Environment(enclosing, slots);
+
+        Environment environment = free[--freeCount];
+        environment.reuse(enclosing, slots);
+        return environment;
+    }
+
+    // cleared so the pool doesn't keep whatever was in it alive
+    private void release(Environment environment, int slots) {
+        Arrays.fill(environment.values, 0, slots, null);
+        environment.enclosing = null;
+
+        if(freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = environment;
     }
 
     @Override
     public Object visitExitExpr(Expr.Exit expr) {
-        System.exit(0); // not an error, so I should be able to get away with system code 0
+        out.flush();                                                // exit might not come back, don't lose anything
+        exit.run();
         return null; // maybe it's not needed here, but at least i'll appease the java compiler
     }
 
-    private Object evaluate(Expr expr) {
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // stops at the first statement that returns, and passes on how
+    private Object execute(List<Stmt> statements) {
+        for(int i = 0; i < statements.size(); ++i) {
+            Object completion = execute(statements.get(i));
+            if(completion != null) return completion;
+        }
+
+        return null;
+    }
+
+    // for the evaluator's own use, may come back as UNBOXED with the value in number
+    private Object evaluateRaw(Expr expr) {
+        if(--countdown == 0) check(expr);
+        if(shared != null && shared.contains(expr)) return memoised(expr);
         return expr.accept(this);
     }
 
-    private String getType(Object value) {
-        if(value == null) return "nil";
+    // shared nodes are pure, so the first value is the value every time (kept boxed, nil is a value too)
+    private Object memoised(Expr expr) {
+        if(memo.containsKey(expr)) return memo.get(expr);
 
-        if(value instanceof Double) return "Double";
-        if(value instanceof Boolean) return "Boolean";
+        Object value = box(expr.accept(this), number);
+        memo.put(expr, value);
+        return value;
+    }
 
-        return "String";
+    // the operators can be redefined from other threads at any time, the version says if the cached tables still
+    // hold, and a type registered since they were compiled isn't in them yet
+    private OperatorMap.Snapshot operators(int type) {
+        OperatorMap.Snapshot cached = operators;
+        if(cached == null || cached.version != operatorMap.version() || type >= cached.types) {
+            cached = operators = operatorMap.snapshot();
+        }
+
+        return cached;
     }
 
-    private String stringify(Object value) {
-        if(value == null) return "nil";
+    // every CHECK_INTERVAL nodes, or sooner when the step budget is about to run out
+    private void check(Expr expr) {
+        evaluated += chunk;
+        if(limits.steps > 0 && evaluated > limits.steps) {
+            throw new Limits.Exceeded(token(expr), "evaluation took more than " + limits.steps + " steps");
+        }
 
-        if(value instanceof Double) {
-            String text = value.toString();
-            if(text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
+        if(deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new Limits.Exceeded(token(expr), "evaluation took longer than " + limits.timeout + "ms");
+        }
 
-            return text;
+        countdown = chunk = nextChunk();
+    }
+
+    // the check lands on the first node past the budget
+    private int nextChunk() {
+        if(limits.steps == 0) return CHECK_INTERVAL;
+        return (int)Math.min(CHECK_INTERVAL, limits.steps - evaluated + 1);
+    }
+
+    // ropes know their length, so this never has to flatten anything
+    private Object checked(Object result, Token operator) {
+        if(limits.strings > 0 && result instanceof CharSequence && ((CharSequence)result).length() > limits.strings) {
+            throw new Limits.Exceeded(operator, "string longer than " + limits.strings + " characters");
+        }
+
+        return result;
+    }
+
+    private static Token token(Expr expr) {
+        if(expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator;
+        if(expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator;
+        if(expr instanceof Expr.Exit) return ((Expr.Exit)expr).exit;
+        if(expr instanceof Expr.Variable) return ((Expr.Variable)expr).name;
+        if(expr instanceof Expr.Assign) return ((Expr.Assign)expr).name;
+        if(expr instanceof Expr.Call) return ((Expr.Call)expr).paren;
+        if(expr instanceof Expr.Get) return ((Expr.Get)expr).name;
+        if(expr instanceof Expr.Set) return ((Expr.Set)expr).name;
+        if(expr instanceof Expr.Super) return ((Expr.Super)expr).keyword;
+        if(expr instanceof Expr.This) return ((Expr.This)expr).keyword;
+
+        return null;
+    }
+
+    private static Object box(Object value, double number) {
+        return value == UNBOXED ? (Object)number : value;
+    }
+
+    private void print(Object value) {
+        if(value == null) {
+            out.append("nil");
+        } else if(value instanceof Double) {
+            out.append((double)value);
+        } else if(value instanceof CharSequence) {
+            out.append((CharSequence)value);
+        } else {
+            out.append(value.toString());
         }
+    }
 
-        return value.toString();
+    // counted across every run on this interpreter
+    static final class Statistics {
+        long hits;                              // property accesses a site's cache answered
+        long misses;                            // looked up, and cached at the site for next time
+        long megamorphic;                       // looked up at a site that's already seen too many shapes to cache it
+        long transitions;                       // fields added to an instance, moving it on to another shape
+        long shapes;                            // shapes made, the rest of the transitions found one already there
+
+        @Override
+        public String toString() {
+            long total = hits + misses + megamorphic;
+            return String.format("property caches: %d hits, %d misses, %d megamorphic (%.1f%% hit rate)%n" +
+                                 "shapes: %d transitions, %d shapes made",
+                                 hits, misses, megamorphic, total == 0 ? 0.0 : 100.0 * hits / total, transitions, shapes);
+        }
     }
 
-    private boolean isTruthy(Object value) {
-        if(value == null) return false;
-        if(value instanceof Boolean) return (boolean)value;
-        return true;
+    static class ExitRequest extends RuntimeException {
+        ExitRequest() {
+            super(null, null, false, false);                        // control flow, no stack trace needed
+        }
     }
 }
@@ -0,0 +1,36 @@
+
+package com.mlewicki12.lox;
+
+/*
+ * bounds on a single evaluation, for running expressions nobody has vetted (the server, generated input)
+ * the Interpreter counts nodes down in chunks and only looks at these (and the clock) once a chunk runs out, so
+ * having limits, or not, costs the same decrement and compare per node
+ * 0 means no limit, set from the command line with -Djlox.steps, -Djlox.timeout (millis) and -Djlox.strings
+ * the limits count what actually runs, which isn't always everything in the source: the Parser drops the pure left
+ * side of a comma (see Parser.comma), so "a" + "b", x is never evaluated, isn't counted against steps, and can't
+ * go over strings. only code without effects is skipped this way, so a limit still bounds everything a run can do
+ */
+final class Limits {
+    static final Limits NONE = new Limits(0, 0, 0);
+
+    final long steps;           // nodes evaluated per run
+    final long timeout;         // wall clock millis per run
+    final int strings;          // longest string an operator may produce, in chars
+
+    Limits(long steps, long timeout, int strings) {
+        this.steps = steps;
+        this.timeout = timeout;
+        this.strings = strings;
+    }
+
+    static Limits fromProperties() {
+        return new Limits(Long.getLong("jlox.steps", 0), Long.getLong("jlox.timeout", 0), Integer.getInteger("jlox.strings", 0));
+    }
+
+    // a run went past one of the limits, reported like any other runtime error
+    static class Exceeded extends RuntimeError {
+        Exceeded(Token token, String message) {
+            super(token, message);
+        }
+    }
+}
@@ -1,22 +1,59 @@
 
 package com.mlewicki12.lox;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static final Interpreter interpreter = new Interpreter().limit(Limits.fromProperties());
+    private static final String scanner = System.getProperty("jlox.scanner", "switch"); // pick the scanner engine with -Djlox.scanner=table|parallel
+    private static final boolean cache = Boolean.parseBoolean(System.getProperty("jlox.cache", "true"));    // keep compiled scripts next to the source
+    private static final boolean hashcons = Boolean.getBoolean("jlox.hashcons");                            // merge repeated subexpressions before running
+    private static final boolean stream = Boolean.getBoolean("jlox.stream");                                // run scripts a statement at a time as they're read
+    private static final boolean stats = Boolean.getBoolean("jlox.stats");                                  // report how the property caches did after a script
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private static final Context main = new Context(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 14), false));
+    private static final ThreadLocal<Context> context = ThreadLocal.withInitial(() -> main);
 
     public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
+        try {
+            dispatch(args);
+        } finally {
+            flush();
+        }
+    }
+
+    private static void dispatch(String[] args) throws IOException {
+        if(args.length > 0 && args[0].equals("--compile")) {
+            if(args.length == 2) {
+                compile(args[1], cachePath(Paths.get(args[1])).toString());
+            } else if(args.length == 4 && args[2].equals("-o")) {
+                compile(args[1], args[3]);
+            } else {
+                System.out.println("Usage: jlox --compile [script] -o [output]");
+                System.exit(64);
+            }
+        } else if(args.length > 1 && args[0].equals("--check")) {
+            check(Arrays.asList(args).subList(1, args.length));
+        } else if(args.length > 1 && args[0].equals("--sharing")) {
+            sharing(Arrays.asList(args).subList(1, args.length));
+        } else if(args.length > 0 && args[0].equals("--server")) {
+            new LoxServer(args.length > 1 ? Integer.parseInt(args[1]) : LoxServer.DEFAULT_PORT).serve();
+        } else if(args.length > 1) {
             System.out.println("Usage: jlox [script]");
             System.exit(64);  // invalid argument exit
                                     // https://www.freebsd.org/cgi/man.cgi?query=sysexits&apropos=0&sektion=0&manpath=FreeBSD+4.3-RELEASE&format=html
@@ -28,37 +65,242 @@ public class Lox {
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path)); // scan in the provided file
-        run(new String(bytes, Charset.defaultCharset()));   // throw it in our interpreter
+        Path file = Paths.get(path);
 
-        if(hadError) System.exit(65);                 // exit DATAERR if the input was wrong
-        if(hadRuntimeError) System.exit(70);          // exit SOFTWARE if runtime error
+        if(path.endsWith(".loxc")) {
+            List<Stmt> statements;                                          // already compiled, skip straight to running it
+            try {
+                statements = AstSerializer.read(file);
+            } catch(RuntimeException | InternalError error) {
+                statements = null;                                          // cut short or corrupt, same as not one at all
+            }
+
+            if(statements == null) {
+                System.err.println("jlox error: " + path + " is not a compiled script");
+                System.exit(65);
+            }
+
+            resolve(statements, interpreter.globals());
+            if(!context().hadError) execute(statements, interpreter);
+        } else if(stream) {
+            stream(file);
+        } else {
+            List<Stmt> statements = load(file);
+            if(!context().hadError) resolve(statements, interpreter.globals());
+            if(!context().hadError) execute(statements, interpreter);
+        }
+
+        if(stats) context().err.println(interpreter.statistics());
+        flush();
+
+        if(context().hadError) System.exit(65);             // exit DATAERR if the input was wrong
+        if(context().hadRuntimeError) System.exit(70);      // exit SOFTWARE if runtime error
                                                             // link to list of error codes above
     }
 
+    private static void compile(String path, String output) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+        if(!context().hadError) resolve(statements, new Globals());     // only for the errors, it's resolved again when it's run
+        if(context().hadError) {
+            flush();
+            System.exit(65);
+        }
+
+        AstSerializer.write(Paths.get(output), statements, AstSerializer.hash(bytes));
+    }
+
+    // scanner, parser and interpreter in lockstep: every statement runs as soon as it's parsed and is dropped after,
+    // so the first result doesn't wait on the rest of the file and memory doesn't grow with it
+    // a syntax error stops anything more from running, but the rest is still parsed to report every error in it,
+    // and there's no cache (that needs the whole tree) or hash-consing (that needs every statement) here
+    private static void stream(Path file) throws IOException {
+        try(Reader reader = new InputStreamReader(Files.newInputStream(file), Charset.defaultCharset())) {
+            Parser parser = new Parser(new Scanner(reader));
+            Resolver resolver = new Resolver(interpreter.globals());
+            int reported = 0;
+
+            interpreter.begin();
+            for(Stmt statement = parser.next(); statement != null; statement = parser.next()) {
+                reported = report(parser.diagnostics(), reported);
+                resolver.resolve(statement);
+                if(!context().hadError && !context().hadRuntimeError) interpreter.interpret(statement);
+            }
+
+            report(parser.diagnostics(), reported);
+        }
+    }
+
+    // parse the file, or reuse the compiled copy next to it if it was made from the same source
+    private static List<Stmt> load(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);                            // scan in the provided file
+        if(!cache) return parse(new String(bytes, Charset.defaultCharset()));
+
+        Path compiled = cachePath(file);
+        long hash = AstSerializer.hash(bytes);
+        if(Files.exists(compiled) &&
+           Files.getLastModifiedTime(compiled).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            try {
+                List<Stmt> statements = AstSerializer.read(compiled, hash);
+                if(statements != null) return statements;
+            } catch(IOException | RuntimeException | InternalError error) {
+                // unreadable cache (InternalError is a mapped file shrinking under us), just parse it again
+            }
+        }
+
+        List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+        if(!context().hadError) {
+            try {
+                AstSerializer.write(compiled, statements, hash);
+            } catch(IOException error) {
+                // not being able to cache (read only directory etc) shouldn't stop the script
+            }
+        }
+
+        return statements;
+    }
+
+    private static Path cachePath(Path source) {
+        String name = source.getFileName().toString();
+        return source.resolveSibling(name.endsWith(".lox") ? name + "c" : name + ".loxc");
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);          // create an input reader
+        Document buffer = new Document("");                         // what's been typed since the last run
 
         for(;;) {
-            System.out.print("> ");                                 // format repl line
+            System.out.print(buffer.length() == 0 ? "> " : "... "); // format repl line, ... while a statement is still open
+            System.out.flush();
             String line = reader.readLine();                        // read the input line
             if(line == null) break;                                 // ctrl+d sends null to readline, so break on that
-            run(line);                                              // throw it in our interpreter
-            hadError = false;                                       // reset the error loop bc we're not running a whole file
+
+            buffer.edit(buffer.length(), 0, line + "\n");           // only the end of it gets relexed and reparsed
+            if(buffer.incomplete() && !line.isEmpty()) continue;    // an open block or a missing ;, a blank line runs it anyway
+
+            run(buffer, interpreter);                               // throw it in our interpreter
+            flush();
+            context().hadError = false;                             // reset the error loop bc we're not running a whole file
+            buffer = new Document("");
+        }
+    }
+
+    private static void run(Document buffer, Interpreter interpreter) {
+        for(TableScanner.ScanError error : buffer.lexErrors()) {
+            error(error.line, error.message);
         }
+
+        report(buffer.diagnostics(), 0);
+        if(context().hadError) return;
+
+        List<Stmt> statements = new ArrayList<>(buffer.statements());
+        resolve(statements, interpreter.globals());
+        if(context().hadError) return;
+
+        execute(statements, interpreter);
+    }
+
+    static void run(String source, Interpreter interpreter) {
+        List<Stmt> statements = parse(source);
+        if(context().hadError) return;              // make sure we don't print if there was an error
+
+        resolve(statements, interpreter.globals());
+        if(context().hadError) return;
+
+        execute(statements, interpreter);
     }
 
-    private static void run(String source) throws IOException {
-        Scanner scanner = new Scanner(source);      // create a scanner object
-        List<Token> tokens = scanner.scanTokens();  // scan the source into tokens
+    private static void resolve(List<Stmt> statements, Globals globals) {
+        new Resolver(globals).resolve(statements);
+    }
+
+    private static void execute(List<Stmt> statements, Interpreter interpreter) {
+        if(hashcons) {
+            interpreter.interpret(HashConser.share(statements));
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    private static List<Stmt> parse(String source) {
+        List<Token> tokens = scan(source);          // scan the source into tokens
 
         Parser parser = new Parser(tokens);         // create a new parser and parse the input
-        Expr expression = parser.parse();
+        List<Stmt> statements = parser.parse();
+
+        report(parser.diagnostics(), 0);
+        return statements;
+    }
+
+    // reports the diagnostics from the given index on, and returns where the next call should pick up
+    private static int report(List<Diagnostic> diagnostics, int from) {
+        for(int i = from; i < diagnostics.size(); ++i) {
+            Diagnostic diagnostic = diagnostics.get(i);
+            report(diagnostic.line, diagnostic.where, diagnostic.message);
+        }
+
+        return diagnostics.size();
+    }
+
+    // parse every file without running anything, and report every error in every file in one go
+    private static void check(List<String> paths) throws IOException {
+        boolean failed = false;
+
+        for(String path : paths) {
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            Context file = new Context(new PrintStream(errors, true));
+            enter(file);
+
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+            if(statements != null) resolve(statements, new Globals());
+            leave();
+
+            if(file.hadError) {
+                failed = true;
+                System.err.println(path + ":");
+                System.err.print(errors);
+            }
+        }
+
+        if(failed) System.exit(65);
+    }
+
+    // what -Djlox.hashcons would make of each script, without running it
+    private static void sharing(List<String> paths) throws IOException {
+        boolean failed = false;
+
+        for(String path : paths) {
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            Context file = new Context(new PrintStream(errors, true));
+            enter(file);
+
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            List<Stmt> statements = parse(new String(bytes, Charset.defaultCharset()));
+            if(statements != null) resolve(statements, new Globals());
+            leave();
 
-        if(hadError) return;                        // make sure we don't print if there was an error
+            if(file.hadError) {
+                failed = true;
+                System.err.println(path + ":");
+                System.err.print(errors);
+            } else {
+                System.out.println(path + ": " + new AstPrinter().sharing(HashConser.share(statements)));
+            }
+        }
+
+        if(failed) System.exit(65);
+    }
+
+    private static List<Token> scan(String source) {
+        if(scanner.equals("table")) {
+            return new TableScanner(source).scanTokens();
+        } else if(scanner.equals("parallel")) {
+            return new ParallelScanner(source).scanTokens();
+        }
 
-        interpreter.interpret(expression);
+        return new Scanner(source).scanTokens();
     }
 
     static void error(int line, String message) {
@@ -74,13 +316,48 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        if(error.token == null) {                                   // limits can run out somewhere without a token
+            context().err.println(error.getMessage());
+        } else {
+            context().err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        }
+
+        context().hadRuntimeError = true;
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println(String.format("[%d] jlox error %s: %s", line, where, message));
-        hadError = true;                                                                    // ensure that, unlike myself, jlox doesn't run past errors
+        context().err.println("[" + line + "] jlox error " + where + ": " + message);
+        context().hadError = true;                                                          // ensure that, unlike myself, jlox doesn't run past errors
+    }
+
+    // results sit in the interpreter's sink and errors in a buffer until this, so it has to happen before anything
+    // that ends the process or waits on the user
+    private static void flush() {
+        interpreter.flush();
+        main.err.flush();
+    }
+
+    static Context context() {
+        return context.get();
+    }
+
+    // run everything reported on this thread through the given context, server sessions each get their own so
+    // a client only sees its own errors
+    static void enter(Context session) {
+        context.set(session);
+    }
+
+    static void leave() {
+        context.remove();
+    }
+
+    static class Context {
+        final PrintStream err;
+        boolean hadError = false;
+        boolean hadRuntimeError = false;
+
+        Context(PrintStream err) {
+            this.err = err;
+        }
     }
 }
@@ -0,0 +1,36 @@
+
+package com.mlewicki12.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * a class, its methods (inherited ones copied in, so finding one is a single lookup) and the empty shape its
+ * instances start on
+ */
+final class LoxClass {
+    final String name;
+    final LoxClass superclass;
+    final Shape root;
+    int capacity = 4;                           // slots a new instance starts with, grows to fit the biggest one yet
+    private final Map<String, LoxFunction> methods;
+
+    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.root = new Shape(this);
+
+        this.methods = superclass == null ? new HashMap<>() : new HashMap<>(superclass.methods);
+        this.methods.putAll(methods);
+    }
+
+    // null if there's no such method
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,38 @@
+
+package com.mlewicki12.lox;
+
+/*
+ * a declared function and the environment it was declared in, which its calls are chained onto
+ * a method taken off an instance without calling it is bound to that instance, which its calls get as this in the
+ * first slot of their frame
+ */
+final class LoxFunction {
+    final Stmt.Function declaration;
+    final Environment closure;                  // null for one declared at the top level
+    final boolean initializer;                  // init, whose calls always come back with this
+    final LoxInstance receiver;                 // null unless bound
+
+    LoxFunction(Stmt.Function declaration, Environment closure) {
+        this(declaration, closure, false, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean initializer, LoxInstance receiver) {
+        this.declaration = declaration;
+        this.closure = closure;
+        this.initializer = initializer;
+        this.receiver = receiver;
+    }
+
+    LoxFunction bind(LoxInstance instance) {
+        return new LoxFunction(declaration, closure, initializer, instance);
+    }
+
+    int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
@@ -0,0 +1,23 @@
+
+package com.mlewicki12.lox;
+
+/*
+ * fields live in slots like locals do, where each one is comes from the shape, with numbers kept unboxed in numbers
+ * (NUMBER in values) the same way Environment does it
+ */
+final class LoxInstance {
+    Shape shape;
+    Object[] values;
+    double[] numbers;
+
+    LoxInstance(LoxClass klass) {
+        this.shape = klass.root;
+        this.values = new Object[klass.capacity];
+        this.numbers = new double[klass.capacity];
+    }
+
+    @Override
+    public String toString() {
+        return shape.klass.name + " instance";
+    }
+}
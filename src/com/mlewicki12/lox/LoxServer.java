@@ -0,0 +1,88 @@
+
+package com.mlewicki12.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * long running jlox, so shell pipelines don't pay for jvm startup (and a cold jit) on every little script
+ * listens on loopback only, every connection is a session with its own Interpreter, output and error state
+ * the protocol is just lines, each line sent is run like a line typed into the repl and its output comes back,
+ * and the session ends when the client closes its side, so something like
+ *     printf '1 + 1\n' | nc -N localhost 5457
+ * works as a client
+ */
+public class LoxServer {
+    static final int DEFAULT_PORT = 5457;
+    private static final Limits limits = Limits.fromProperties();      // clients are untrusted, bound every line they send
+
+    private final int port;
+    private final ExecutorService sessions = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "jlox-session");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LoxServer(int port) {
+        this.port = port;
+    }
+
+    void serve() throws IOException {
+        try(ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            System.err.println("jlox listening on " + server.getLocalSocketAddress());
+
+            for(;;) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);                         // replies are tiny, don't let nagle sit on them
+                sessions.execute(new Session(socket));
+            }
+        }
+    }
+
+    private static class Session implements Runnable {
+        private final Socket socket;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8)) {
+
+                Lox.Context context = new Lox.Context(out);
+                Interpreter interpreter = new Interpreter(OutputSink.of(out), Interpreter.RAISE_EXIT).limit(limits);
+                Lox.enter(context);
+
+                String line;
+                while((line = reader.readLine()) != null) {
+                    Lox.run(line, interpreter);
+                    context.hadError = false;                       // same as the repl, every line starts clean
+                    interpreter.flush();                            // results go through out too, so they stay in order with errors
+                    out.flush();
+                }
+            } catch(Interpreter.ExitRequest exit) {
+                // the client asked to leave (and not the whole server), the finally closes everything
+            } catch(IOException | UncheckedIOException error) {
+                // client went away (maybe halfway through some output), nothing to tell anyone
+            } finally {
+                Lox.leave();
+                try {
+                    socket.close();                                 // even if the streams never got opened
+                } catch(IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * type tags for lox values, so checking a type is comparing two ints instead of instanceof chains and strings
+ * values themselves stay plain java objects where they have to be stored (literals, results), with canonical
+ * singletons for nil (null), true and false, the Interpreter keeps numbers unboxed while it's working on them
+ * embedders can add their own types on top of the builtin ones (OperatorMap.defineType), those get tags from TYPES up,
+ * and are kept in copy on write tables so looking one up never locks
+ */
+final class LoxValue {
+    static final int NIL     = 0;
+    static final int BOOLEAN = 1;
+    static final int NUMBER  = 2;
+    static final int STRING  = 3;
+    static final int OBJECT  = 4;      // anything else an embedder hands us
+
+    static final int TYPES   = 5;      // builtin ones, registered types come after
+
+    private static volatile Map<Class<?>, Integer> classes = new HashMap<>();
+    private static volatile List<String> names = new ArrayList<>();
+
+    static final Object TRUE = Boolean.TRUE;
+    static final Object FALSE = Boolean.FALSE;
+
+    private LoxValue() {
+    }
+
+    static int tag(Object value) {
+        if(value == null) return NIL;
+
+        Class<?> type = value.getClass();
+        if(type == Double.class) return NUMBER;
+        if(type == Boolean.class) return BOOLEAN;
+        if(type == String.class || type == Rope.class) return STRING;
+
+        Map<Class<?>, Integer> registered = classes;
+        if(registered.isEmpty()) return OBJECT;
+
+        Integer tag = registered.get(type);
+        return tag == null ? OBJECT : tag;
+    }
+
+    // the names OperatorMap definitions use, -1 for "Object" which matches every type
+    static int tag(String name) {
+        switch(name) {
+            case "nil": return NIL;
+            case "Boolean": return BOOLEAN;
+            case "Double": return NUMBER;
+            case "String": return STRING;
+            case "Object": return -1;
+            default:
+                int index = names.indexOf(name);
+                return index < 0 ? OBJECT : TYPES + index;
+        }
+    }
+
+    static String name(int tag) {
+        switch(tag) {
+            case NIL: return "nil";
+            case BOOLEAN: return "Boolean";
+            case NUMBER: return "Double";
+            case STRING: return "String";
+            default:
+                List<String> registered = names;
+                return tag >= TYPES && tag - TYPES < registered.size() ? registered.get(tag - TYPES) : "Object";
+        }
+    }
+
+    // how many tags there are, so how big tables indexed by them have to be
+    static int types() {
+        return TYPES + names.size();
+    }
+
+    static synchronized int register(String name, Class<?> type) {
+        if(tag(name) != OBJECT || classes.containsKey(type)) {         // a builtin name, or already registered
+            throw new IllegalArgumentException("type " + name + " is already defined");
+        }
+
+        Map<Class<?>, Integer> updatedClasses = new HashMap<>(classes);
+        List<String> updatedNames = new ArrayList<>(names);
+
+        int tag = TYPES + updatedNames.size();
+        updatedClasses.put(type, tag);
+        updatedNames.add(name);
+
+        names = updatedNames;                   // names first, so types() already covers a tag by the time a value has it
+        classes = updatedClasses;
+        return tag;
+    }
+
+    static Object bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    static boolean isTruthy(Object value) {
+        if(value == null) return false;
+        if(value == TRUE) return true;
+        if(value == FALSE) return false;
+        if(value instanceof Boolean) return (boolean)value;
+
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+
+package com.mlewicki12.lox;
+
+/*
+ * identifiers (and keywords) for one scan: a name that's been seen before comes back as the very same String, found
+ * straight from the characters in the scanner's buffer, so a name used a million times is one String instead of a
+ * million substrings, and comparing two uses of it (Globals, the Resolver) stops at the identity check
+ * open addressing over String.hashCode, so the hash a String caches for itself is the one used here
+ */
+final class Names {
+    private String[] table = new String[256];
+    private int count = 0;
+
+    String intern(char[] chars, int from, int to) {
+        int hash = 0;
+        for(int i = from; i < to; ++i) {
+            hash = 31 * hash + chars[i];
+        }
+
+        int mask = table.length - 1;
+        for(int index = spread(hash) & mask; ; index = (index + 1) & mask) {
+            String name = table[index];
+            if(name == null) {
+                name = new String(chars, from, to - from);
+                table[index] = name;
+                if(++count * 2 > table.length) grow();
+                return name;
+            }
+
+            if(name.hashCode() == hash && matches(name, chars, from, to)) return name;
+        }
+    }
+
+    private static boolean matches(String name, char[] chars, int from, int to) {
+        if(name.length() != to - from) return false;
+
+        for(int i = from; i < to; ++i) {
+            if(name.charAt(i - from) != chars[i]) return false;
+        }
+
+        return true;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+
+        int mask = table.length - 1;
+        for(String name : old) {
+            if(name == null) continue;
+
+            int index = spread(name.hashCode()) & mask;
+            while(table[index] != null) index = (index + 1) & mask;
+            table[index] = name;
+        }
+    }
+
+    // names are short, so their hashes differ mostly in the low bits, mix the high ones in
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -5,69 +5,101 @@ import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 import java.util.HashMap;
+import java.util.Map;
 
 public class OperatorMap {
     /*
      * this is an iffy solution that uses a double hashmap to assign a tuple of types to operators
      * I was messing around with a linked list of types and hashmaps for each operator, but that feels excessive
      * right now, especially since this works
+     *
+     * embedders can define operators (and types, see defineType) while other threads are evaluating: the hashmaps
+     * are only touched under the lock, and every change compiles a new immutable Snapshot that's swapped in whole,
+     * so lookups never lock and always see one consistent table
+     * every snapshot has a version, anything that holds on to a snapshot or an Operator out of one can compare
+     * versions to know when it's stale
      */
-    private final HashMap<StringTuple, HashMap<String, Operator>> map = new HashMap<>();
+    private final HashMap<StringTuple, HashMap<String, Operator>> map = new HashMap<>();   // guarded by this
+    private boolean defined = false;    // the builtins are defined on first lookup, linking all the lambdas is a big
+                                        // chunk of startup and a script might never use an operator
+    private volatile Snapshot snapshot; // null until the first lookup
+    private int version = 0;
 
-    OperatorMap() {
-        defineOperators();
+    public OperatorMap() {
+    }
+
+    // the one every interpreter uses unless it's given its own, so something defined here is visible everywhere
+    public static OperatorMap standard() {
+        return Standard.map;
     }
 
     public Object getOperator(String type, TokenType operator, Object value) {
-        return getOperator(new StringTuple(type), operator, value);
+        Operator opr = unary(operator, LoxValue.tag(type));
+        return opr == null ? null : opr.run(value);
     }
 
     public Object getOperator(String type1, String type2, TokenType operator, Object... values) {
-        return getOperator(new StringTuple(type1, type2), operator, values);
+        Operator opr = binary(operator, LoxValue.tag(type1), LoxValue.tag(type2));
+        return opr == null ? null : opr.run(values);
     }
 
-    private Object getOperator(StringTuple key, TokenType operator, Object... values) {
-        if(map.containsKey(key)) {
-            HashMap operatorMap = map.get(key);
-            if(operatorMap.containsKey(operator.toString())) {
-                Operator opr = (Operator)operatorMap.get(operator.toString());
-                return opr.run(values);
-            }
-        }
+    Operator unary(TokenType operator, int type) {
+        return snapshot(type).unary(operator, type);
+    }
 
-        String[] types = new String[values.length];
-        for(int i = 0; i < types.length; ++i) {
-            types[i] = "Object";
-        }
+    Operator binary(TokenType operator, int left, int right) {
+        return snapshot(Math.max(left, right)).binary(operator, left, right);
+    }
 
-        StringTuple newKey = new StringTuple(types);
-        if(map.containsKey(newKey) && map.get(newKey).containsKey(operator.toString())) {
-            Operator opr = (Operator)map.get(newKey).get(operator.toString());
-            return opr.run(values);
-        } else {
-            return null; // throw error
-        }
+    // the current tables, compiled first if nothing has been looked up yet or a type was added since
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if(current != null && current.types == LoxValue.types()) return current;
+
+        return compile();
     }
 
-    public void defineOperators() {
-        defineOperator("Double", TokenType.MINUS, new UnaryOperator((a) -> -(double)a));
-        defineOperator("Object", TokenType.BANG, new UnaryOperator((a) -> !isTruthy(a)));
+    int version() {
+        Snapshot current = snapshot;
+        return current == null ? -1 : current.version;
+    }
 
-        defineOperator("Double", "Double", TokenType.MINUS, new BinaryOperator((a, b) -> (double)a - (double)b));
-        defineOperator("Double", "Double", TokenType.SLASH, new BinaryOperator((a, b) -> (double)a / (double)b));
-        defineOperator("Double", "Double", TokenType.STAR, new BinaryOperator((a, b) -> (double)a * (double)b));
-        defineOperator("Double", "Double", TokenType.PLUS, new BinaryOperator((a, b) -> (double)a + (double)b));
+    private Snapshot snapshot(int type) {
+        Snapshot current = snapshot;
+        return current != null && type < current.types ? current : snapshot();
+    }
 
-        defineOperator("Double", "Double", TokenType.GREATER, new BinaryOperator((a, b) -> (double)a > (double)b));
-        defineOperator("Double", "Double", TokenType.GREATER_EQUAL, new BinaryOperator((a, b) -> (double)a >= (double)b));
-        defineOperator("Double", "Double", TokenType.LESS, new BinaryOperator((a, b) -> (double)a < (double)b));
-        defineOperator("Double", "Double", TokenType.LESS_EQUAL, new BinaryOperator((a, b) -> (double)a <= (double)b));
+    // a value type of the embedder's own, operators can be defined for it by name after this
+    public synchronized int defineType(String name, Class<?> type) {
+        int tag = LoxValue.register(name, type);
+        publish();
+        return tag;
+    }
 
-        defineOperator("String", "String", TokenType.PLUS, new BinaryOperator((a, b) -> (String)a + (String)b));
+    public synchronized void defineOperators() {
+        if(defined) return;
+        defined = true;
+
+        put("Double", TokenType.MINUS, new UnaryOperator((a) -> -(double)a));
+        put("Object", TokenType.BANG, new UnaryOperator((a) -> !LoxValue.isTruthy(a)));
+
+        put("Double", "Double", TokenType.MINUS, new BinaryOperator((a, b) -> (double)a - (double)b));
+        put("Double", "Double", TokenType.SLASH, new BinaryOperator((a, b) -> (double)a / (double)b));
+        put("Double", "Double", TokenType.STAR, new BinaryOperator((a, b) -> (double)a * (double)b));
+        put("Double", "Double", TokenType.PLUS, new BinaryOperator((a, b) -> (double)a + (double)b));
+
+        put("Double", "Double", TokenType.GREATER, new BinaryOperator((a, b) -> (double)a > (double)b));
+        put("Double", "Double", TokenType.GREATER_EQUAL, new BinaryOperator((a, b) -> (double)a >= (double)b));
+        put("Double", "Double", TokenType.LESS, new BinaryOperator((a, b) -> (double)a < (double)b));
+        put("Double", "Double", TokenType.LESS_EQUAL, new BinaryOperator((a, b) -> (double)a <= (double)b));
+
+        put("String", "String", TokenType.PLUS, new BinaryOperator(Rope::concat));    // ropes, so chains of + don't keep copying
 
         // this should work to pump the operators into one function, i just need a catch for it
-        defineOperator("Object", "Object", TokenType.EQUAL_EQUAL, new BinaryOperator((a, b) -> isEqual(a, b)));
-        defineOperator("Object", "Object", TokenType.BANG_EQUAL, new BinaryOperator((a, b) -> !isEqual(a, b)));
+        put("Object", "Object", TokenType.EQUAL_EQUAL, new BinaryOperator((a, b) -> isEqual(a, b)));
+        put("Object", "Object", TokenType.BANG_EQUAL, new BinaryOperator((a, b) -> !isEqual(a, b)));
+
+        publish();
     }
 
     public void defineOperator(String type, TokenType operator, Operator function) {
@@ -78,28 +110,79 @@ public class OperatorMap {
         defineOperator(new StringTuple(type1, type2), operator, function);
     }
 
-    public void defineOperator(StringTuple key, TokenType operator, Operator function) {
-        if(!map.containsKey(key)) {
-            map.put(key, new HashMap<>());
+    // throws if the operator is already defined for those types, the builtins included
+    public synchronized void defineOperator(StringTuple key, TokenType operator, Operator function) {
+        if(!defined) defineOperators();
+
+        put(key, operator, function);
+        publish();
+    }
+
+    private void put(String type, TokenType operator, Operator function) {
+        put(new StringTuple(type), operator, function);
+    }
+
+    private void put(String type1, String type2, TokenType operator, Operator function) {
+        put(new StringTuple(type1, type2), operator, function);
+    }
+
+    private void put(StringTuple key, TokenType operator, Operator function) {
+        HashMap<String, Operator> operators = map.computeIfAbsent(key, types -> new HashMap<>());
+        if(operators.containsKey(operator.toString())) {
+            throw new IllegalArgumentException(operator + " is already defined for " + key);
         }
 
-        HashMap operatorMap = map.get(key);
-        if(!map.containsKey(operator.toString())) {
-            operatorMap.put(operator.toString(), function);
-        } else {
-            return; // throw error
+        operators.put(operator.toString(), function);
+    }
+
+    private synchronized Snapshot compile() {
+        if(!defined) {
+            defineOperators();                              // publishes
+        } else if(snapshot == null || snapshot.types != LoxValue.types()) {
+            publish();
         }
+
+        return snapshot;
     }
 
-    private boolean isTruthy(Object value) {
-        if(value == null) return false;
-        if(value instanceof Boolean) return (boolean)value;
-        return true;
+    // the definitions get compiled down to tables indexed by operator and type tags, so a lookup is just array loads
+    private void publish() {
+        int types = LoxValue.types();
+        int operators = TokenType.values().length;
+        Operator[][] unaries = new Operator[operators][types];
+        Operator[][][] binaries = new Operator[operators][types][types];
+
+        // two passes, so anything defined for specific types wins over an "Object" catch all
+        for(int pass = 0; pass < 2; ++pass) {
+            for(StringTuple key : map.keySet()) {
+                boolean wildcard = key.isWildcard();
+                if(wildcard != (pass == 0)) continue;
+
+                for(Map.Entry<String, Operator> entry : map.get(key).entrySet()) {
+                    int operator = TokenType.valueOf(entry.getKey()).ordinal();
+                    for(int left = 0; left < types; ++left) {
+                        if(!key.matches(0, left)) continue;
+
+                        if(key.values.length == 1) {
+                            unaries[operator][left] = entry.getValue();
+                            continue;
+                        }
+
+                        for(int right = 0; right < types; ++right) {
+                            if(key.matches(1, right)) binaries[operator][left][right] = entry.getValue();
+                        }
+                    }
+                }
+            }
+        }
+
+        snapshot = new Snapshot(unaries, binaries, types, ++version);
     }
 
-    private boolean isEqual(Object left, Object right) {
+    private static boolean isEqual(Object left, Object right) {
         if(left == null && right == null) return true;
         if(left == null) return false;
+        if(Rope.isString(left) && Rope.isString(right)) return left.toString().equals(right.toString());    // a rope equals the string it spells
 
         return left.equals(right);
     }
@@ -116,6 +199,19 @@ public class OperatorMap {
             return "(" + String.join(",", values) + ")";
         }
 
+        boolean isWildcard() {
+            for(String value : values) {
+                if(!value.equals("Object")) return false;
+            }
+
+            return true;
+        }
+
+        boolean matches(int index, int tag) {
+            int type = LoxValue.tag(values[index]);
+            return type == -1 || type == tag;
+        }
+
         // make it work with hashmaps
         @Override
         public int hashCode() {
@@ -165,13 +261,40 @@ public class OperatorMap {
         }
     }
 
-    interface Operator {
+    // the compiled tables, never changed once published
+    static final class Snapshot {
+        final int types;
+        final int version;
+        private final Operator[][] unary;           // [operator][type]
+        private final Operator[][][] binary;        // [operator][left type][right type]
+
+        private Snapshot(Operator[][] unary, Operator[][][] binary, int types, int version) {
+            this.unary = unary;
+            this.binary = binary;
+            this.types = types;
+            this.version = version;
+        }
+
+        Operator unary(TokenType operator, int type) {
+            return unary[operator.ordinal()][type];
+        }
+
+        Operator binary(TokenType operator, int left, int right) {
+            return binary[operator.ordinal()][left][right];
+        }
+    }
+
+    private static class Standard {
+        static final OperatorMap map = new OperatorMap();
+    }
+
+    public interface Operator {
         public Object run(Object... values);
     }
 
-    class UnaryOperator implements Operator {
+    public static class UnaryOperator implements Operator {
         private final SingleOperatorFunction function;
-        UnaryOperator(SingleOperatorFunction function) {
+        public UnaryOperator(SingleOperatorFunction function) {
             this.function = function;
         }
 
@@ -185,9 +308,9 @@ public class OperatorMap {
         }
     }
 
-    class BinaryOperator implements Operator {
+    public static class BinaryOperator implements Operator {
         private final DoubleOperatorFunction function;
-        BinaryOperator(DoubleOperatorFunction function) {
+        public BinaryOperator(DoubleOperatorFunction function) {
             this.function = function;
         }
 
@@ -203,11 +326,11 @@ public class OperatorMap {
 
     // not throwing ternary operator here yet, bc it has just one use in the language so far
 
-    interface SingleOperatorFunction { // im sure there's a better way to do this, but this should let me define the operation as a lambda
+    public interface SingleOperatorFunction { // im sure there's a better way to do this, but this should let me define the operation as a lambda
         public Object run(Object value);
     }
 
-    interface DoubleOperatorFunction {
+    public interface DoubleOperatorFunction {
         public Object run(Object left, Object right);
     }
 
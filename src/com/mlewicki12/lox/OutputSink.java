@@ -0,0 +1,107 @@
+
+package com.mlewicki12.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * where interpreter output goes: one reusable buffer that's only handed to the channel when it fills up or when
+ * someone asks for a flush (the end of a script, exit, the end of a repl line), instead of a synchronised println
+ * and a flush for every value
+ * text is encoded straight into the buffer, ascii a byte at a time and anything else through utf-8, and numbers are
+ * written digit by digit by DoubleFormatter without going through a String when they can be
+ */
+final class OutputSink {
+    private static final int SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final byte[] bytes = new byte[SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int count = 0;
+
+    OutputSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    static OutputSink stdout() {
+        return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    static OutputSink of(OutputStream out) {
+        return new OutputSink(Channels.newChannel(out));
+    }
+
+    OutputSink append(CharSequence text) {
+        String string = text.toString();                // flattens a Rope once instead of per character
+        int length = string.length();
+
+        for(int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if(c >= 0x80) {
+                write(string.substring(i).getBytes(StandardCharsets.UTF_8));
+                return this;
+            }
+
+            if(count == SIZE) drain();
+            bytes[count++] = (byte)c;
+        }
+
+        return this;
+    }
+
+    OutputSink append(char c) {
+        if(c >= 0x80) return append(String.valueOf(c));
+
+        if(count == SIZE) drain();
+        bytes[count++] = (byte)c;
+        return this;
+    }
+
+    // same text as Double.toString with a trailing .0 dropped, which is how lox has always printed numbers
+    OutputSink append(double value) {
+        if(SIZE - count < DoubleFormatter.MAX_LENGTH) drain();
+
+        int end = DoubleFormatter.write(value, bytes, count);
+        if(end < 0) return append(Double.toString(value));         // exponent form, never ends in .0
+
+        count = end;
+        return this;
+    }
+
+    OutputSink newline() {
+        return append('\n');
+    }
+
+    void flush() {
+        drain();
+    }
+
+    private void write(byte[] data) {
+        for(int offset = 0; offset < data.length; ) {
+            if(count == SIZE) drain();
+
+            int length = Math.min(data.length - offset, SIZE - count);
+            System.arraycopy(data, offset, bytes, count, length);
+            count += length;
+            offset += length;
+        }
+    }
+
+    private void drain() {
+        buffer.clear().limit(count);
+        try {
+            while(buffer.hasRemaining()) channel.write(buffer);
+        } catch(IOException error) {
+            throw new UncheckedIOException(error);
+        }
+
+        count = 0;
+    }
+}
@@ -0,0 +1,140 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ * splits a big source into chunks that each end just past a new line and tokenizes them on the fork/join pool
+ * every chunk is scanned speculatively as if it starts outside of a string or comment, which is almost always true
+ * the chunks are then walked in order, and any chunk that actually starts inside a string or comment left open by
+ * the one before it gets rescanned from that state, so the merged tokens match Scanner exactly
+ * line numbers come from counting new lines per chunk in parallel first and taking a prefix sum over the counts
+ */
+public class ParallelScanner {
+    static final int MIN_CHUNK = 1 << 16;                           // below this splitting costs more than it saves
+
+    private final String source;
+    private final ForkJoinPool pool;
+
+    ParallelScanner(String source) {
+        this(source, ForkJoinPool.commonPool());
+    }
+
+    ParallelScanner(String source, ForkJoinPool pool) {
+        this.source = source;
+        this.pool = pool;
+    }
+
+    List<Token> scanTokens() {
+        int parallelism = pool.getParallelism();
+        if(parallelism < 2 || source.length() < MIN_CHUNK * 2) {
+            return new TableScanner(source).scanTokens();           // not worth the overhead
+        }
+
+        char[] chars = source.toCharArray();
+        int[] bounds = split(chars, Math.max(MIN_CHUNK, chars.length / (parallelism * 4)));
+        int chunks = bounds.length - 1;
+
+        // count the lines in every chunk, then turn the counts into the line each chunk starts on
+        List<Callable<Integer>> counts = new ArrayList<>(chunks);
+        for(int i = 0; i < chunks; ++i) {
+            int from = bounds[i], to = bounds[i + 1];
+            counts.add(() -> countLines(chars, from, to));
+        }
+
+        int[] lines = new int[chunks];
+        List<Future<Integer>> counted = pool.invokeAll(counts);
+        lines[0] = 1;
+        for(int i = 1; i < chunks; ++i) {
+            lines[i] = lines[i - 1] + get(counted.get(i - 1));
+        }
+
+        // speculative scans, assuming every chunk starts outside of a string or comment
+        List<Callable<TableScanner>> scans = new ArrayList<>(chunks);
+        for(int i = 0; i < chunks; ++i) {
+            int from = bounds[i], to = bounds[i + 1], line = lines[i];
+            scans.add(() -> {
+                TableScanner scanner = new TableScanner(source, chars, line, true);
+                scanner.scan(from, to);
+                return scanner;
+            });
+        }
+
+        List<Future<TableScanner>> scanned = pool.invokeAll(scans);
+
+        // resync, anything that was guessed wrong gets scanned again from the state the previous chunk ended in
+        TableScanner[] results = new TableScanner[chunks];
+        int total = 1;
+        for(int i = 0; i < chunks; ++i) {
+            TableScanner result = get(scanned.get(i));
+            if(i > 0 && results[i - 1].state() != TableScanner.CODE) {
+                result = new TableScanner(source, chars, lines[i], true);
+                result.resume(results[i - 1]);
+                result.scan(bounds[i], bounds[i + 1]);
+            }
+
+            results[i] = result;
+            total += result.tokens().size();
+        }
+
+        TableScanner last = results[chunks - 1];
+        last.finish();
+
+        List<Token> tokens = new ArrayList<>(total);
+        for(TableScanner result : results) {
+            tokens.addAll(result.tokens());
+            for(TableScanner.ScanError error : result.errors()) {
+                Lox.error(error.line, error.message);               // report in source order, same as the sequential scanners
+            }
+        }
+
+        tokens.add(new Token(TokenType.EOF, "", null, last.line()));
+        return tokens;
+    }
+
+    // chunk boundaries, each one just past a new line so no token other than a string or comment straddles two chunks
+    private static int[] split(char[] chars, int size) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int next = size;
+        while(next < chars.length) {
+            while(next < chars.length && chars[next - 1] != '\n') next++;
+            if(next >= chars.length) break;
+
+            bounds.add(next);
+            next += size;
+        }
+
+        bounds.add(chars.length);
+
+        int[] result = new int[bounds.size()];
+        for(int i = 0; i < result.length; ++i) {
+            result[i] = bounds.get(i);
+        }
+
+        return result;
+    }
+
+    private static int countLines(char[] chars, int from, int to) {
+        int count = 0;
+        for(int i = from; i < to; ++i) {
+            if(chars[i] == '\n') count++;
+        }
+
+        return count;
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch(InterruptedException | ExecutionException error) {
+            throw new RuntimeException(error);
+        }
+    }
+}
@@ -1,61 +1,258 @@
 
 package com.mlewicki12.lox;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
+/*
+ * tokens are pulled in as they're needed, never more than one past the end of the statement being parsed, so fed
+ * straight from a Scanner a script can be run a statement at a time while the rest of it is still being read
+ */
 public class Parser {
     private static class ParseError extends RuntimeException {}
+    private static class TooManyErrors extends ParseError {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    static final int MAX_ERRORS = 100;
+
+    private final Supplier<Token> tokens;
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    private final int maxErrors;
+    private Token previous;
+    private Token next;
+    private boolean gaveUp = false;         // too many errors, nothing more is parsed
 
     Parser(List<Token> tokens) {
+        this(tokens, MAX_ERRORS);
+    }
+
+    Parser(List<Token> tokens, int maxErrors) {
+        this(tokens.iterator()::next, maxErrors);
+    }
+
+    Parser(Scanner scanner) {
+        this(scanner::nextToken, MAX_ERRORS);
+    }
+
+    // Document hands out tokens this way, so it knows how far the parser got
+    Parser(Supplier<Token> tokens, int maxErrors) {
         this.tokens = tokens;
+        this.maxErrors = maxErrors;
+        this.next = tokens.get();
+    }
+
+    // the whole program, null if anything in it was broken
+    List<Stmt> parse() {
+        List<Stmt> statements = new ArrayList<>();
+        for(Stmt statement = next(); statement != null; statement = next()) {
+            statements.add(statement);
+        }
+
+        return diagnostics.isEmpty() ? statements : null;
     }
 
-    Expr parse() {
-        try {                           // make sure any errors don't escape the parser
-            return expression();        // enter recursive descent
+    // the next statement, or null once the tokens run out, a broken statement is noted and skipped over so the
+    // ones after it can still be checked for errors
+    Stmt next() {
+        while(!gaveUp && !isAtEnd()) {
+            try {
+                Stmt statement = declaration();
+                if(statement != null) return statement;
+            } catch(TooManyErrors error) {
+                gaveUp = true;
+            }
+        }
+
+        return null;
+    }
+
+    // everything that went wrong, in the order it was found
+    List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    // null if it was broken, once the tokens have been skipped up to where the next statement probably starts
+    private Stmt declaration() {
+        try {
+            if(match(TokenType.CLASS)) return classDeclaration();
+            if(match(TokenType.FUN)) return function("function");
+            if(match(TokenType.VAR)) return varDeclaration();
+
+            return statement();
+        } catch(TooManyErrors error) {
+            throw error;
         } catch(ParseError error) {
+            synchronize();
             return null;
         }
     }
 
+    private Stmt classDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "expected class name");
+
+        Expr.Variable superclass = null;
+        if(match(TokenType.LESS)) {
+            consume(TokenType.IDENTIFIER, "expected superclass name");
+            superclass = new Expr.Variable(previous());
+        }
+
+        consume(TokenType.LEFT_BRACE, "expected '{' before class body");
+
+        List<Stmt.Function> methods = new ArrayList<>();
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            methods.add(function("method"));
+        }
+
+        consume(TokenType.RIGHT_BRACE, "expected '}' after class body");
+        return new Stmt.Class(name, superclass, methods);
+    }
+
+    private Stmt.Function function(String kind) {
+        Token name = consume(TokenType.IDENTIFIER, "expected " + kind + " name");
+        consume(TokenType.LEFT_PAREN, "expected '(' after " + kind + " name");
+
+        List<Token> params = new ArrayList<>();
+        if(!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if(params.size() >= 255) error(peek(), "can't have more than 255 parameters");    // noted, not thrown
+                params.add(consume(TokenType.IDENTIFIER, "expected parameter name"));
+            } while(match(TokenType.COMMA));
+        }
+
+        consume(TokenType.RIGHT_PAREN, "expected ')' after parameters");
+        consume(TokenType.LEFT_BRACE, "expected '{' before " + kind + " body");
+        return new Stmt.Function(name, params, block());
+    }
+
+    private Stmt varDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "expected variable name");
+
+        Expr initializer = null;
+        if(match(TokenType.EQUAL)) initializer = expression();
+
+        consume(TokenType.SEMICOLON, "expected ';' after variable declaration");
+        return new Stmt.Var(name, initializer);
+    }
+
+    private Stmt statement() {
+        if(match(TokenType.PRINT)) return printStatement();
+        if(match(TokenType.RETURN)) return returnStatement();
+        if(match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+
+        return expressionStatement();
+    }
+
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            Stmt statement = declaration();
+            if(statement != null) statements.add(statement);
+        }
+
+        consume(TokenType.RIGHT_BRACE, "expected '}' after block");
+        return statements;
+    }
+
+    private Stmt printStatement() {
+        Expr value = expression();
+        consume(TokenType.SEMICOLON, "expected ';' after value");
+        return new Stmt.Print(value);
+    }
+
+    private Stmt returnStatement() {
+        Token keyword = previous();
+        Expr value = check(TokenType.SEMICOLON) ? null : expression();
+
+        consume(TokenType.SEMICOLON, "expected ';' after return value");
+        return new Stmt.Return(keyword, value);
+    }
+
+    // an expression left at the very end without a ';' gets printed, which is how every script and repl line
+    // worked before there were statements, so 1 + 2 on its own still shows 3
+    private Stmt expressionStatement() {
+        Expr expr = expression();
+        if(isAtEnd()) return new Stmt.Print(expr);
+
+        consume(TokenType.SEMICOLON, "expected ';' after expression");
+        return new Stmt.Expression(expr);
+    }
+
     private Expr expression() {
         return errorprod();              // run through an error production to make sure there isn't a lonely :,( operator
     }
 
     private Expr errorprod() {
-        if(match(TokenType.COMMA, TokenType.QUESTION_MARK, TokenType.COLON, TokenType.BANG_EQUAL,
-                 TokenType.EQUAL_EQUAL, TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL,
-                 TokenType.PLUS, TokenType.SLASH, TokenType.STAR)) {
-            throw error(previous(), "expected expression");         // this doesn't parse the next expression, I think I would have to do something
-                                                                            // in the try catch in parse for that
-        } else {
-            return comma();
+        if(lonelyOperator()) {
+            error(previous(), "expected expression");                       // note it, then parse the rest as if the operator wasn't there
         }
+
+        return comma();
+    }
+
+    private boolean lonelyOperator() {
+        return match(TokenType.COMMA, TokenType.QUESTION_MARK, TokenType.COLON, TokenType.BANG_EQUAL,
+                     TokenType.EQUAL_EQUAL, TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL,
+                     TokenType.PLUS, TokenType.SLASH, TokenType.STAR);
     }
 
     private Expr comma() {
-        Expr expr = conditional();
+        Expr expr = assignment();
+        boolean kept = false;               // once a side effect is kept the whole chain so far has effects
 
         while(match(TokenType.COMMA)) {
             Token operator = previous();    // technically shouldn't be needed, but the token will have more relevant info
-            Expr right = conditional();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr right = assignment();
+
+            if(!kept && Purity.isPure(expr)) {
+                expr = right;               // the left side is only there for its effects, so if it has none drop it
+                                            // (it never runs, so it doesn't count against Limits either)
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+                kept = true;
+            }
         }
 
         return expr;
     }
 
+    // binds looser than ?:, so a = b ? c : d assigns the whole conditional
+    private Expr assignment() {
+        Expr expr = conditional();
+        if(!match(TokenType.EQUAL)) return expr;
+
+        Token equals = previous();
+        Expr value = assignment();                                          // right associative, a = b = c
+        if(expr instanceof Expr.Variable) return new Expr.Assign(((Expr.Variable)expr).name, value);
+        if(expr instanceof Expr.Get) return new Expr.Set(((Expr.Get)expr).object, ((Expr.Get)expr).name, value);
+
+        error(equals, "invalid assignment target");                         // nothing to recover from, carry on
+        return expr;
+    }
+
     private Expr conditional() {
         Expr expr = equality();
+        if(!match(TokenType.QUESTION_MARK)) return expr;                    // structure right now should be equality ( ? conditional : conditional )*
 
-        while(match(TokenType.QUESTION_MARK)) {                             // structure right now should be equality ( ? conditional : conditional )*
-            Expr left = conditional();
+        // a ? b : c ? d : e nests to the right, so collect the whole chain in a loop instead of recursing per link
+        List<Expr> conditions = new ArrayList<>();
+        List<Expr> branches = new ArrayList<>();
+        conditions.add(expr);
+
+        for(;;) {
+            branches.add(conditional());
             consume(TokenType.COLON, "expected ':' after '?'");
-            Expr right = conditional();
-            expr = new Expr.Ternary(expr, left, right);
+
+            Expr next = equality();
+            if(match(TokenType.QUESTION_MARK)) {
+                conditions.add(next);
+            } else {
+                expr = next;
+                break;
+            }
+        }
+
+        for(int i = conditions.size() - 1; i >= 0; --i) {
+            expr = new Expr.Ternary(conditions.get(i), branches.get(i), expr);
         }
 
         return expr;
@@ -116,7 +313,34 @@ public class Parser {
             return new Expr.Unary(operator, right);
         }
 
-        return primary();
+        return call();
+    }
+
+    private Expr call() {
+        Expr expr = primary();
+        for(;;) {
+            if(match(TokenType.LEFT_PAREN)) {
+                expr = finishCall(expr);
+            } else if(match(TokenType.DOT)) {
+                expr = new Expr.Get(expr, consume(TokenType.IDENTIFIER, "expected property name after '.'"));
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    // arguments are parsed below the comma operator, so f(a, b) is two of them and f((a, b)) is one
+    private Expr finishCall(Expr callee) {
+        List<Expr> arguments = new ArrayList<>();
+        if(!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if(arguments.size() >= 255) error(peek(), "can't have more than 255 arguments");
+                arguments.add(assignment());
+            } while(match(TokenType.COMMA));
+        }
+
+        Token paren = consume(TokenType.RIGHT_PAREN, "expected ')' after arguments");
+        return new Expr.Call(callee, paren, arguments);
     }
 
     private Expr primary() {
@@ -124,6 +348,14 @@ public class Parser {
         if(match(TokenType.FALSE)) return new Expr.Literal(false);
         if(match(TokenType.NIL)) return new Expr.Literal(null);
         if(match(TokenType.EXIT)) return new Expr.Exit(previous());
+        if(match(TokenType.IDENTIFIER)) return new Expr.Variable(previous());
+        if(match(TokenType.THIS)) return new Expr.This(previous());
+
+        if(match(TokenType.SUPER)) {
+            Token keyword = previous();
+            consume(TokenType.DOT, "expected '.' after 'super'");
+            return new Expr.Super(keyword, consume(TokenType.IDENTIFIER, "expected superclass method name"));
+        }
 
         if(match(TokenType.NUMBER, TokenType.STRING)) {
             return new Expr.Literal(previous().literal);
@@ -135,6 +367,11 @@ public class Parser {
             return new Expr.Grouping(expr);
         }
 
+        if(lonelyOperator()) {                                              // same error production as the start of an expression,
+            error(previous(), "expected expression");                       // so 1 + * 2 carries on with the 2
+            return unary();
+        }
+
         throw error(peek(), "expected expression");
     }
 
@@ -177,7 +414,9 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        diagnostics.add(new Diagnostic(token, message));
+        if(diagnostics.size() >= maxErrors) throw new TooManyErrors();       // give up, past this it's probably not lox
+
         return new ParseError();
     }
 
@@ -187,19 +426,23 @@ public class Parser {
     }
 
     private Token advance() {
-        if(!isAtEnd()) current++;
-        return previous();
+        if(!isAtEnd()) {
+            previous = next;
+            next = tokens.get();
+        }
+
+        return previous;
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return next.type == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return next;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 }
@@ -0,0 +1,54 @@
+
+package com.mlewicki12.lox;
+
+import java.util.Arrays;
+
+/*
+ * the inline cache of one property site (a get, a set, a method call, a super call): what it found for every shape
+ * it's seen so far, so the next instance on one of those shapes goes straight to the slot or the method
+ * one entry is monomorphic, up to LIMIT polymorphic, and a site that sees more shapes than that is megamorphic and
+ * looks everything past those up
+ * entries never change once made and the array is replaced whole, so a tree run by interpreters on different
+ * threads can only ever miss on a shape from the other one
+ */
+final class PropertyCache {
+    static final int LIMIT = 4;
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private volatile Entry[] entries = EMPTY;
+
+    // null if the shape hasn't been seen here
+    Entry find(Shape shape) {
+        Entry[] entries = this.entries;
+        for(int i = 0; i < entries.length; ++i) {
+            if(entries[i].shape == shape) return entries[i];
+        }
+
+        return null;
+    }
+
+    // false if the site is full
+    boolean add(Entry entry) {
+        Entry[] entries = this.entries;
+        if(entries.length == LIMIT) return false;
+
+        Entry[] grown = Arrays.copyOf(entries, entries.length + 1);
+        grown[entries.length] = entry;
+        this.entries = grown;
+        return true;
+    }
+
+    static final class Entry {
+        final Shape shape;
+        final int slot;                         // where the field is, or -1 for a method
+        final LoxFunction method;
+        final Shape next;                       // a set that adds the field moves the instance on to this
+
+        Entry(Shape shape, int slot, LoxFunction method, Shape next) {
+            this.shape = shape;
+            this.slot = slot;
+            this.method = method;
+            this.next = next;
+        }
+    }
+}
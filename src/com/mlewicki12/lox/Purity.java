@@ -0,0 +1,100 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * an expression is pure if evaluating it can't do anything besides produce a value, so it's safe to skip or share
+ * the walk keeps its own stack, generated expressions can nest far deeper than the java stack would like
+ */
+class Purity implements Expr.Visitor<Boolean> {
+    private final Deque<Expr> pending = new ArrayDeque<>();
+
+    static boolean isPure(Expr expr) {
+        Purity purity = new Purity();
+        purity.pending.push(expr);
+
+        while(!purity.pending.isEmpty()) {
+            if(!purity.pending.pop().accept(purity)) return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        return false;
+    }
+
+    // the visits answer for the node itself and queue up its children
+    @Override
+    public Boolean visitTernaryExpr(Expr.Ternary expr) {
+        return check(expr.condition, expr.left, expr.right);
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return check(expr.left, expr.right);
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return check(expr.expression);
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return check(expr.right);
+    }
+
+    @Override
+    public Boolean visitExitExpr(Expr.Exit expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        return false;
+    }
+
+    // fields change under it like variables do
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    // reading a variable can fail, and what it reads can change between reads, so it's never safe to skip or share
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return false;
+    }
+
+    private Boolean check(Expr... children) {
+        for(Expr child : children) {
+            pending.push(child);
+        }
+
+        return true;
+    }
+}
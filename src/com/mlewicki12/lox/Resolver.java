@@ -0,0 +1,323 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * works out where every variable lives before anything runs, so the Interpreter never looks a name up
+ * a local gets (depth, slot): how many environments out from the current one it is, and where in that one
+ * a global gets depth -1 and its index in Globals
+ * only blocks that declare something get an environment, so the rest don't count towards the depth
+ * a function's parameters and the locals at the top of its body share one environment, its frame, a method's has
+ * this in slot 0 before them, and a subclass puts an environment holding super around its methods
+ * a frame or block environment can be handed out again once it's finished with, unless a function was declared
+ * somewhere inside it: that closure might still be holding on to it, so it's marked as not pooled
+ * mistakes are reported like parse errors, and nothing runs if there were any
+ * expressions are walked with their own stack like Purity does, statements nest shallow enough to recurse
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Globals globals;
+    private final Deque<Scope> scopes = new ArrayDeque<>();        // innermost first
+    private final Deque<Expr> pending = new ArrayDeque<>();
+    private int functions = 0;                                      // declared so far, to tell which scopes saw one
+    private FunctionType function = FunctionType.NONE;              // what's being resolved, for return, this and super
+    private ClassType type = ClassType.NONE;
+
+    Resolver(Globals globals) {
+        this.globals = globals;
+    }
+
+    void resolve(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    void resolve(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        pending.push(expr);
+        while(!pending.isEmpty()) {
+            pending.pop().accept(this);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int before = functions;
+        if(!declares(stmt.statements)) {
+            stmt.slots = 0;
+            resolve(stmt.statements);
+            stmt.pooled = functions == before;
+            return null;
+        }
+
+        Scope scope = new Scope();
+        scopes.push(scope);
+        resolve(stmt.statements);
+        scopes.pop();
+
+        stmt.slots = scope.slots.size();
+        stmt.pooled = functions == before;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        int[] location = define(stmt.name);
+        stmt.depth = location[0];
+        stmt.slot = location[1];
+
+        ClassType enclosing = type;
+        type = ClassType.CLASS;
+
+        if(stmt.superclass != null) {
+            if(stmt.superclass.name.lexeme.equals(stmt.name.lexeme)) {
+                Lox.error(stmt.superclass.name, "a class can't inherit from itself");
+            }
+
+            type = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+
+            Scope scope = new Scope();
+            scope.slots.put("super", 0);
+            scopes.push(scope);
+        }
+
+        for(Stmt.Function method : stmt.methods) {
+            function(method, method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD);
+        }
+
+        if(stmt.superclass != null) scopes.pop();
+        type = enclosing;
+        return null;
+    }
+
+    // the name is declared before the body is resolved, so the function can call itself
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        int[] location = define(stmt.name);
+        stmt.depth = location[0];
+        stmt.slot = location[1];
+
+        function(stmt, FunctionType.FUNCTION);
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType kind) {
+        int before = ++functions;
+        Scope scope = new Scope();
+        if(kind != FunctionType.FUNCTION) scope.slots.put("this", 0);
+
+        int first = scope.slots.size();
+        for(Token param : stmt.params) {
+            if(scope.slots.containsKey(param.lexeme)) Lox.error(param, "already a parameter called " + param.lexeme);
+            scope.slots.putIfAbsent(param.lexeme, scope.slots.size());
+        }
+
+        FunctionType enclosing = function;
+        function = kind;
+        scopes.push(scope);
+        resolve(stmt.body);
+        scopes.pop();
+        function = enclosing;
+
+        stmt.slots = Math.max(scope.slots.size(), first + stmt.params.size());    // a repeated parameter still takes a slot
+        stmt.pooled = functions == before;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(function == FunctionType.NONE) Lox.error(stmt.keyword, "can't return from top-level code");
+        if(stmt.value == null) return null;
+
+        if(function == FunctionType.INITIALIZER) Lox.error(stmt.keyword, "can't return a value from an initializer");
+        resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Scope scope = scopes.peek();
+        if(stmt.initializer != null) {
+            if(scope != null) scope.initializing = stmt.name.lexeme;
+            resolve(stmt.initializer);
+            if(scope != null) scope.initializing = null;
+        }
+
+        int[] location = define(stmt.name);
+        stmt.depth = location[0];
+        stmt.slot = location[1];
+        return null;
+    }
+
+    // { depth, slot } for a declaration in the innermost scope, or a global at the top level
+    private int[] define(Token name) {
+        Scope scope = scopes.peek();
+        if(scope == null) return new int[] { -1, globals.index(name.lexeme) };
+
+        if(scope.slots.containsKey(name.lexeme)) {
+            Lox.error(name, "already a variable called " + name.lexeme + " in this scope");
+        }
+
+        return new int[] { 0, scope.slots.computeIfAbsent(name.lexeme, declared -> scope.slots.size()) };
+    }
+
+    // the visits handle the node itself and queue up its children
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        int[] location = locate(expr.name);
+        expr.depth = location[0];
+        expr.slot = location[1];
+
+        pending.push(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        return queue(expr.condition, expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        return queue(expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        return queue(expr.expression);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        return queue(expr.right);
+    }
+
+    @Override
+    public Void visitExitExpr(Expr.Exit expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.cache = new PropertyCache();
+        return queue(expr.object);
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.cache = new PropertyCache();
+        return queue(expr.object, expr.value);
+    }
+
+    // the method frame with this in it is always the one just inside the environment holding super
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if(type == ClassType.NONE) {
+            Lox.error(expr.keyword, "can't use 'super' outside of a class");
+        } else if(type != ClassType.SUBCLASS) {
+            Lox.error(expr.keyword, "can't use 'super' in a class with no superclass");
+        }
+
+        int[] location = locate(expr.keyword);
+        expr.depth = location[0];
+        expr.slot = location[1];
+        expr.cache = new PropertyCache();
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if(type == ClassType.NONE) Lox.error(expr.keyword, "can't use 'this' outside of a class");
+
+        int[] location = locate(expr.keyword);
+        expr.depth = location[0];
+        expr.slot = location[1];
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        pending.push(expr.callee);
+        for(Expr argument : expr.arguments) {
+            pending.push(argument);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        Scope scope = scopes.peek();
+        if(scope != null && expr.name.lexeme.equals(scope.initializing)) {
+            Lox.error(expr.name, "can't read a local variable in its own initializer");
+        }
+
+        int[] location = locate(expr.name);
+        expr.depth = location[0];
+        expr.slot = location[1];
+        return null;
+    }
+
+    // { depth, slot } of the closest declaration, or a global if there isn't one
+    private int[] locate(Token name) {
+        int depth = 0;
+        for(Scope scope : scopes) {
+            Integer slot = scope.slots.get(name.lexeme);
+            if(slot != null) return new int[] { depth, slot };
+
+            depth++;
+        }
+
+        return new int[] { -1, globals.index(name.lexeme) };
+    }
+
+    private Void queue(Expr... children) {
+        for(Expr child : children) {
+            pending.push(child);
+        }
+
+        return null;
+    }
+
+    // known up front, so anything nested inside a block counts it whether its declarations come first or last
+    private static boolean declares(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Function || statement instanceof Stmt.Class) return true;
+        }
+
+        return false;
+    }
+
+    private enum FunctionType { NONE, FUNCTION, METHOD, INITIALIZER }
+    private enum ClassType { NONE, CLASS, SUBCLASS }
+
+    private static class Scope {
+        final Map<String, Integer> slots = new HashMap<>();
+        String initializing;                                        // declared, but its initializer is still being resolved
+    }
+}
@@ -0,0 +1,99 @@
+
+package com.mlewicki12.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * a lox string built out of concatenations, so a + b is O(1) and shares both sides instead of copying them
+ * the characters are only laid out when something actually needs them (printing, equality), after which the rope
+ * keeps the flat string and lets go of its children
+ * anything that treats strings as strings should go through toString, both String and Rope are "String" to lox
+ */
+final class Rope implements CharSequence {
+    private static final int SHORT = 64;            // below this copying is cheaper than a node
+    private static final int MAX_DEPTH = 256;       // flatten once a chain gets this deep, keeps the walks short
+
+    private CharSequence left;
+    private CharSequence right;
+    private String flat;
+    private final int length;
+    private final int depth;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+        this.depth = Math.max(depth(left), depth(right)) + 1;
+    }
+
+    // both values have to be lox strings, so either a String or a Rope
+    static CharSequence concat(Object a, Object b) {
+        CharSequence left = (CharSequence)a;
+        CharSequence right = (CharSequence)b;
+
+        if(left.length() == 0) return right;
+        if(right.length() == 0) return left;
+        if(left.length() + right.length() <= SHORT) return left.toString() + right.toString();
+
+        Rope rope = new Rope(left, right);
+        if(rope.depth > MAX_DEPTH) return rope.toString();
+
+        return rope;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if(flat == null) flatten();
+        return flat;
+    }
+
+    // walks the tree with its own stack, left to right, copying every leaf straight into place
+    private void flatten() {
+        char[] chars = new char[length];
+        int position = 0;
+
+        Deque<CharSequence> stack = new ArrayDeque<>();
+        stack.push(this);
+        while(!stack.isEmpty()) {
+            CharSequence node = stack.pop();
+            if(node instanceof Rope && ((Rope)node).flat == null) {
+                Rope rope = (Rope)node;
+                stack.push(rope.right);
+                stack.push(rope.left);
+            } else {
+                String leaf = node.toString();
+                leaf.getChars(0, leaf.length(), chars, position);
+                position += leaf.length();
+            }
+        }
+
+        flat = new String(chars);
+        left = null;                                // the children aren't needed anymore, let them go
+        right = null;
+    }
+
+    private static int depth(CharSequence value) {
+        if(value instanceof Rope && ((Rope)value).flat == null) return ((Rope)value).depth;
+        return 0;
+    }
+}
@@ -1,36 +1,53 @@
 
 package com.mlewicki12.lox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/*
+ * the source is either all there up front, or read in through a buffer as the scanner gets to it, where the buffer
+ * only has to hold the lexeme being scanned, so a script being run as it's read never sits in memory all at once
+ */
 public class Scanner {
-    private final String source;
+    private final Reader input;                 // null when the whole source is already in the buffer
+    private char[] source;
+    private int limit;                          // how much of the buffer is source
     private final List<Token> tokens = new ArrayList<>();
+    private final Names names = new Names();
+
+    // the keyword table lives in a holder class, so it's only built the first time an identifier is scanned
+    private static class Keywords {
+        static final Map<String, TokenType> table = new HashMap<>();
+
+        static {
+            table.put("and",     TokenType.AND);
+            table.put("class",   TokenType.CLASS);
+            table.put("else",    TokenType.ELSE);
+            table.put("false",   TokenType.FALSE);
+            table.put("for",     TokenType.FOR);
+            table.put("fun",     TokenType.FUN);
+            table.put("if",      TokenType.IF);
+            table.put("nil",     TokenType.NIL);
+            table.put("or",      TokenType.OR);
+            table.put("print",   TokenType.PRINT);
+            table.put("return",  TokenType.RETURN);
+            table.put("super",   TokenType.SUPER);
+            table.put("this",    TokenType.THIS);
+            table.put("true",    TokenType.TRUE);
+            table.put("var",     TokenType.VAR);
+            table.put("while",   TokenType.WHILE);
+            table.put("exit",    TokenType.EXIT);
+        }
+    }
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",     TokenType.AND);
-        keywords.put("class",   TokenType.CLASS);
-        keywords.put("else",    TokenType.ELSE);
-        keywords.put("false",   TokenType.FALSE);
-        keywords.put("for",     TokenType.FOR);
-        keywords.put("fun",     TokenType.FUN);
-        keywords.put("if",      TokenType.IF);
-        keywords.put("nil",     TokenType.NIL);
-        keywords.put("or",      TokenType.OR);
-        keywords.put("print",   TokenType.PRINT);
-        keywords.put("return",  TokenType.RETURN);
-        keywords.put("super",   TokenType.SUPER);
-        keywords.put("this",    TokenType.THIS);
-        keywords.put("true",    TokenType.TRUE);
-        keywords.put("var",     TokenType.VAR);
-        keywords.put("while",   TokenType.WHILE);
-        keywords.put("exit",    TokenType.EXIT);
+    static TokenType keyword(String text) {
+        return Keywords.table.get(text);
     }
 
     private int start = 0;
@@ -38,7 +55,15 @@ public class Scanner {
     private int line = 1;
 
     Scanner(String source) {
-        this.source = source;
+        this.input = null;
+        this.source = source.toCharArray();
+        this.limit = this.source.length;
+    }
+
+    Scanner(Reader input) {
+        this.input = input;
+        this.source = new char[1 << 13];
+        this.limit = 0;
     }
 
     List<Token> scanTokens() {
@@ -51,6 +76,21 @@ public class Scanner {
         return tokens;
     }
 
+    // one token at a time instead of all of them up front, so the parser (and whatever runs what it parses) can
+    // keep up with the scanner, EOF over and over once the source runs out
+    Token nextToken() {
+        while(tokens.isEmpty()) {
+            if(isAtEnd()) return new Token(TokenType.EOF, "", null, line);
+
+            start = current;
+            scanToken();
+        }
+
+        Token token = tokens.get(0);                                        // scanToken adds one token at most
+        tokens.clear();
+        return token;
+    }
+
     private void scanToken() {
         char c = advance();
         switch(c) {
@@ -74,7 +114,10 @@ public class Scanner {
 
             case '/':                                                                                       // special behaviour for comment
                 if(match('/')) {
-                    while(peek() != '\n' && !isAtEnd()) advance();
+                    while(peek() != '\n' && !isAtEnd()) {
+                        start = current;                                                                    // comments are never a lexeme, don't hold on to them
+                        advance();
+                    }
                 } else if(match('*')) {
                     multiline();
                 } else {
@@ -99,7 +142,7 @@ public class Scanner {
                 } else if(isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, String.format("unexpected character %c", c));
+                    Lox.error(line, "unexpected character " + c);
                 }
 
                 break;
@@ -119,7 +162,7 @@ public class Scanner {
 
         advance();                                                  // swallow the closing "
 
-        String value = source.substring(start + 1, current - 1);
+        String value = new String(source, start + 1, current - start - 2);
         addToken(TokenType.STRING, value);                          // string off surrounding quotes
     }
 
@@ -132,48 +175,64 @@ public class Scanner {
             while(isDigit(peek())) advance();       // eat the rest of the numbers
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER, Double.parseDouble(lexeme()));
     }
 
     private void identifier() {
         while(isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
+        String text = names.intern(source, start, current);                 // every use of a name is the same string, see Names
+        TokenType type = keyword(text);
         if(type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        tokens.add(new Token(type, text, null, line));
     }
 
-    private boolean multiline() {
-        while(peek() != '*' && !isAtEnd()) {                                // same code as string, make sure we account for new lines
-            if(peek() == '\n') line++;
-            if(match('/')) {                                        // nested multiline comment
-                if(match('*')) {
-                    boolean test = multiline();
-                    if (!test) {                                                 // if we failed run it up the line
-                        return false;
-                    }
-                }
+    private void multiline() {
+        int depth = 1;                                                      // count nesting instead of recursing, so long or deeply
+        int opened = line;                                                  // nested comments run in constant stack
+
+        while(!isAtEnd()) {
+            start = current;
+            char c = advance();
+            if(c == '\n') {                                                 // same as string, make sure we account for new lines
+                line++;
+            } else if(c == '*' && match('/')) {
+                if(--depth == 0) return;
+            } else if(c == '/' && match('*')) {                             // nested multiline comment
+                depth++;
             }
-            advance();
         }
 
-        if(isAtEnd()) {
-            return false;                                                   // kill the scanner if the comment doesn't close
-                                                                            // doesn't particularly need to be an error, but
-                                                                            // return false so we can ensure proper behaviour for multiline
-        }
+        Lox.error(opened, "unterminated comment");                          // point at where the comment was opened, not the end of the file
+    }
+
+    private boolean isAtEnd() {
+        return current >= limit && !fill();
+    }
 
-        advance();                                                          // swallow the closing *
-        if(!match('/')) {
-            return multiline();                                             // if there's no closing / we continue processing the comment
+    // slide the lexeme being scanned to the front of the buffer and read more in behind it, false once there's
+    // nothing left to read
+    private boolean fill() {
+        if(input == null) return false;
+
+        if(start > 0) {
+            System.arraycopy(source, start, source, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
         }
 
-        return true;
-    }
+        if(limit == source.length) source = Arrays.copyOf(source, source.length * 2);      // one lexeme longer than the buffer
 
-    private boolean isAtEnd() {
-        return current >= source.length();
+        try {
+            int read = input.read(source, limit, source.length - limit);
+            if(read < 0) return false;
+
+            limit += read;
+            return true;
+        } catch(IOException error) {
+            throw new UncheckedIOException(error);
+        }
     }
 
     private boolean isDigit(char c) {
@@ -192,12 +251,12 @@ public class Scanner {
 
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return source[current - 1];
     }
 
     private boolean match(char expected) {
         if(isAtEnd()) return false;
-        if(source.charAt(current) != expected) return false;
+        if(source[current] != expected) return false;
 
         current++;
         return true;
@@ -205,12 +264,15 @@ public class Scanner {
 
     private char peek() {
         if(isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current];
     }
 
     private char peekNext() {
-        if(current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        while(current + 1 >= limit) {
+            if(!fill()) return '\0';
+        }
+
+        return source[current + 1];
     }
 
     private void addToken(TokenType type) {
@@ -218,7 +280,10 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);     // extract the lexeme from the string
-        tokens.add(new Token(type, text, literal, line));   // insert into list
+        tokens.add(new Token(type, lexeme(), literal, line));   // insert into list
+    }
+
+    private String lexeme() {
+        return new String(source, start, current - start);
     }
 }
@@ -0,0 +1,49 @@
+
+package com.mlewicki12.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * the hidden class of an instance: which fields it has, and the slot each one is in
+ * every class starts its instances off on an empty shape of its own, and adding a field moves an instance on to the
+ * shape with that field added, made the first time and shared after that, so instances that get the same fields in
+ * the same order end up on the very same Shape, and a PropertyCache can tell everything about an instance from it
+ * only ever touched by the interpreter running the class, so nothing here is synchronized
+ */
+final class Shape {
+    final LoxClass klass;
+    final int size;                                             // fields an instance on this shape has
+    private final Map<String, Integer> slots;                   // copied down from the parent, a lookup is one probe
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape(LoxClass klass) {
+        this.klass = klass;
+        this.size = 0;
+        this.slots = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.klass = parent.klass;
+        this.size = parent.size + 1;
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size);
+    }
+
+    // -1 if there's no such field
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // the shape after adding name, null if no instance has made that move yet
+    Shape transition(String name) {
+        return transitions.get(name);
+    }
+
+    Shape add(String name) {
+        Shape next = new Shape(this, name);
+        transitions.put(name, next);
+        return next;
+    }
+}
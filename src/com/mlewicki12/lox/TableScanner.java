@@ -0,0 +1,517 @@
+
+package com.mlewicki12.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/*
+ * table driven alternative to Scanner, produces exactly the same token stream
+ * every character is mapped to a class through a lookup table, and the class picks the transition, so the hot loop
+ * is one array load and a switch instead of a chain of peek/match/advance calls with a bounds check each
+ * the long runs (whitespace, comments, string bodies) are skipped with tight index loops and String.indexOf, which
+ * the jvm compiles down to vectorised instructions, and new lines are counted in bulk over the skipped range
+ */
+public class TableScanner {
+    // character classes
+    private static final byte OTHER      = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte NEWLINE    = 2;
+    private static final byte DIGIT      = 3;
+    private static final byte ALPHA      = 4;
+    private static final byte QUOTE      = 5;
+    private static final byte SLASH      = 6;
+    private static final byte SINGLE     = 7;   // always a one character token
+    private static final byte PAIR       = 8;   // one character token, or two if followed by =
+
+    private static final byte[] classes = new byte[128];
+    private static final TokenType[] single = new TokenType[128];
+    private static final TokenType[] paired = new TokenType[128];
+
+    static {
+        classes[' '] = WHITESPACE;
+        classes['\r'] = WHITESPACE;
+        classes['\t'] = WHITESPACE;
+        classes['\n'] = NEWLINE;
+        classes['"'] = QUOTE;
+        classes['/'] = SLASH;
+
+        for(char c = '0'; c <= '9'; ++c) classes[c] = DIGIT;
+        for(char c = 'a'; c <= 'z'; ++c) classes[c] = ALPHA;
+        for(char c = 'A'; c <= 'Z'; ++c) classes[c] = ALPHA;
+        classes['_'] = ALPHA;
+
+        defineSingle('(', TokenType.LEFT_PAREN);
+        defineSingle(')', TokenType.RIGHT_PAREN);
+        defineSingle('{', TokenType.LEFT_BRACE);
+        defineSingle('}', TokenType.RIGHT_BRACE);
+        defineSingle(',', TokenType.COMMA);
+        defineSingle('.', TokenType.DOT);
+        defineSingle('-', TokenType.MINUS);
+        defineSingle('+', TokenType.PLUS);
+        defineSingle(';', TokenType.SEMICOLON);
+        defineSingle('*', TokenType.STAR);
+        defineSingle('?', TokenType.QUESTION_MARK);
+        defineSingle(':', TokenType.COLON);
+
+        definePair('!', TokenType.BANG, TokenType.BANG_EQUAL);
+        definePair('=', TokenType.EQUAL, TokenType.EQUAL_EQUAL);
+        definePair('>', TokenType.GREATER, TokenType.GREATER_EQUAL);
+        definePair('<', TokenType.LESS, TokenType.LESS_EQUAL);
+    }
+
+    private static void defineSingle(char c, TokenType type) {
+        classes[c] = SINGLE;
+        single[c] = type;
+    }
+
+    private static void definePair(char c, TokenType one, TokenType two) {
+        classes[c] = PAIR;
+        single[c] = one;
+        paired[c] = two;
+    }
+
+    // lexer states a range can end in, only strings and block comments can run across a new line
+    static final int CODE       = 0;
+    static final int IN_STRING  = 1;
+    static final int IN_COMMENT = 2;
+
+    private final String source;
+    private final char[] chars;
+    private final int length;
+    private final List<Token> tokens = new ArrayList<>();
+    private final Names names = new Names();
+    private final List<ScanError> errors;                           // null when errors go straight to Lox.error
+
+    private int line;
+    private int state = CODE;
+    private int stringStart;                                        // offset of the opening " while IN_STRING
+    private int depth;                                              // nesting and opening line while IN_COMMENT
+    private int commentLine;
+
+    private int[] starts;                                           // offset of every token, only kept when asked for
+
+    TableScanner(String source) {
+        this(source, source.toCharArray(), 1, false);
+    }
+
+    // used by ParallelScanner to scan one chunk of a shared source, holding on to errors until the chunk is accepted
+    TableScanner(String source, char[] chars, int line, boolean deferErrors) {
+        this.source = source;
+        this.chars = chars;
+        this.length = chars.length;
+        this.line = line;
+        this.errors = deferErrors ? new ArrayList<>() : null;
+    }
+
+    List<Token> scanTokens() {
+        scan(0, length);
+        finish();
+
+        tokens.add(new Token(TokenType.EOF, "", null, line));
+        return tokens;
+    }
+
+    // scans [from, to) starting in whatever state the scanner is in, to has to be the end of the source or just
+    // past a new line, so the only tokens that can be left open are strings and comments
+    void scan(int from, int to) {
+        int current = from;
+
+        if(state == IN_STRING) {
+            current = string(stringStart, current, to);
+        } else if(state == IN_COMMENT) {
+            current = comment(current, to);
+        }
+
+        while(current < to) {
+            int start = current;
+            char c = chars[current++];
+            byte cls = c < 128 ? classes[c] : OTHER;
+
+            switch(cls) {
+                case WHITESPACE:
+                    while(current < to && chars[current] < 128 && classes[chars[current]] == WHITESPACE) current++;
+                    break;
+
+                case NEWLINE:
+                    line++;
+                    break;
+
+                case SINGLE:
+                    add(new Token(single[c], source.substring(start, current), null, line), start);
+                    break;
+
+                case PAIR:
+                    if(current < to && chars[current] == '=') {
+                        current++;
+                        add(new Token(paired[c], source.substring(start, current), null, line), start);
+                    } else {
+                        add(new Token(single[c], source.substring(start, current), null, line), start);
+                    }
+                    break;
+
+                case SLASH:
+                    if(current < to && chars[current] == '/') {
+                        int end = indexOf('\n', current, to);                     // leave the new line for the main loop
+                        current = end < 0 ? to : end;
+                    } else if(current < to && chars[current] == '*') {
+                        depth = 1;
+                        commentLine = line;
+                        current = comment(current + 1, to);
+                    } else {
+                        add(new Token(TokenType.SLASH, "/", null, line), start);
+                    }
+                    break;
+
+                case QUOTE:
+                    current = string(start, current, to);
+                    break;
+
+                case DIGIT:
+                    current = number(start, current, to);
+                    break;
+
+                case ALPHA:
+                    current = identifier(start, current, to);
+                    break;
+
+                default:
+                    error(line, "unexpected character " + c);
+                    break;
+            }
+        }
+    }
+
+    // report anything still open once the whole source has been scanned
+    void finish() {
+        if(state == IN_STRING) {
+            error(line, "unterminated string");
+        } else if(state == IN_COMMENT) {
+            error(commentLine, "unterminated comment");
+        }
+
+        state = CODE;
+    }
+
+    // pick up from where the scanner of the previous chunk left off
+    void resume(TableScanner previous) {
+        this.state = previous.state;
+        this.stringStart = previous.stringStart;
+        this.depth = previous.depth;
+        this.commentLine = previous.commentLine;
+    }
+
+    // keep the source offset every token starts at, Document needs them to line tokens up across edits
+    void trackStarts() {
+        starts = new int[16];
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    int state() {
+        return state;
+    }
+
+    int line() {
+        return line;
+    }
+
+    List<Token> tokens() {
+        return tokens;
+    }
+
+    List<ScanError> errors() {
+        return errors;
+    }
+
+    // from is the first character after the opening " (or the start of the range when resuming a string)
+    private int string(int start, int from, int to) {
+        int end = indexOf('"', from, to);
+        if(end < 0) {
+            line += countLines(from, to);
+            state = IN_STRING;
+            stringStart = start;
+            return to;
+        }
+
+        line += countLines(from, end);
+        state = CODE;
+        add(new Token(TokenType.STRING, source.substring(start, end + 1), source.substring(start + 1, end), line), start);
+        return end + 1;
+    }
+
+    private int number(int start, int current, int to) {
+        while(current < to && isDigit(chars[current])) current++;
+
+        if(current + 1 < to && chars[current] == '.' && isDigit(chars[current + 1])) {
+            current += 2;
+            while(current < to && isDigit(chars[current])) current++;
+        }
+
+        String text = source.substring(start, current);
+        add(new Token(TokenType.NUMBER, text, Double.parseDouble(text), line), start);
+        return current;
+    }
+
+    private int identifier(int start, int current, int to) {
+        while(current < to) {
+            char c = chars[current];
+            if(c >= 128 || (classes[c] != ALPHA && classes[c] != DIGIT)) break;
+            current++;
+        }
+
+        String text = names.intern(chars, start, current);         // same as Scanner, one string per name
+        TokenType type = Scanner.keyword(text);
+        if(type == null) type = TokenType.IDENTIFIER;
+        add(new Token(type, text, null, line), start);
+        return current;
+    }
+
+    // skips a block comment, nested comments are tracked with the depth counter so they can span ranges
+    private int comment(int current, int to) {
+        while(current < to) {
+            char c = chars[current++];
+            if(c == '\n') {
+                line++;
+            } else if(c == '*' && current < to && chars[current] == '/') {
+                current++;
+                if(--depth == 0) {
+                    state = CODE;
+                    return current;
+                }
+            } else if(c == '/' && current < to && chars[current] == '*') {
+                current++;
+                depth++;
+            }
+        }
+
+        state = IN_COMMENT;
+        return to;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        if(to == length) {                                          // String.indexOf is intrinsified, but can't be bounded
+            return source.indexOf(c, from);
+        }
+
+        for(int i = from; i < to; ++i) {
+            if(chars[i] == c) return i;
+        }
+
+        return -1;
+    }
+
+    private int countLines(int from, int to) {
+        int count = 0;
+        for(int i = from; i < to; ++i) {
+            if(chars[i] == '\n') count++;
+        }
+
+        return count;
+    }
+
+    private void add(Token token, int start) {
+        if(starts != null) {
+            if(tokens.size() == starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+            starts[tokens.size()] = start;
+        }
+
+        tokens.add(token);
+    }
+
+    private void error(int line, String message) {
+        if(errors != null) {
+            errors.add(new ScanError(line, message));
+        } else {
+            Lox.error(line, message);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // scans random sources with both this and Scanner and compares the tokens and errors, then does the same for
+    // ParallelScanner over sources big enough to be split, and times all three over a comment heavy source and a
+    // code heavy one: TableScanner [count]
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Random random = new Random(42);
+        ForkJoinPool pool = new ForkJoinPool(4);                   // its own, so it splits even with one cpu
+
+        Function<String, List<Token>> scanner = source -> new Scanner(source).scanTokens();
+        Function<String, List<Token>> table = source -> new TableScanner(source).scanTokens();
+        Function<String, List<Token>> parallel = source -> new ParallelScanner(source, pool).scanTokens();
+
+        int mismatches = 0;
+        for(int i = 0; i < count; ++i) {
+            mismatches += compare(randomSource(random, 1 + random.nextInt(40)), scanner, table, mismatches);
+        }
+
+        System.out.println(count + " sources, " + mismatches + " mismatches");
+
+        int large = Math.max(1, count / 1000);
+        mismatches = 0;
+        for(int i = 0; i < large; ++i) {
+            mismatches += compare(largeSource(random), scanner, parallel, mismatches);
+        }
+
+        System.out.println(large + " large sources, " + mismatches + " parallel mismatches");
+
+        benchmark("comment heavy", repeated(random, 0.8, 8_000_000), scanner, table, parallel);
+        benchmark("code heavy", repeated(random, 0.1, 8_000_000), scanner, table, parallel);
+        pool.shutdown();
+    }
+
+    // 1 if the two disagree on the source, printing the first few that do
+    private static int compare(String source, Function<String, List<Token>> expect, Function<String, List<Token>> scan,
+                               int mismatches) {
+        String expected = scanned(source, expect);
+        String actual = scanned(source, scan);
+        if(actual.equals(expected)) return 0;
+
+        if(mismatches < 10) {
+            int at = 0;                                             // big sources only get shown from where they differ
+            while(at < actual.length() && at < expected.length() && actual.charAt(at) == expected.charAt(at)) at++;
+            at = Math.max(0, at - 200);
+            System.out.println(quoted(source.length() > 400 ? source.substring(0, 400) + "..." : source) + ":\n" +
+                               actual.substring(at, Math.min(actual.length(), at + 400)) + "instead of\n" +
+                               expected.substring(at, Math.min(expected.length(), at + 400)));
+        }
+
+        return 1;
+    }
+
+    private static final String[] fragments = {
+        "var", "fun", "class", "this", "super", "return", "print", "and", "or", "nil", "true", "false", "exit",
+        "x", "_y1", "counter", "Foo", "init",
+        "0", "7", "3.14", "12.", ".5", "1234567890",
+        "(", ")", "{", "}", ",", ".", "-", "+", ";", "*", "?", ":", "/", "!", "!=", "=", "==", ">", ">=", "<", "<=",
+        " ", "  ", "\t", "\r", "\n", "\n\n",
+        "\"\"", "\"text\"", "\"two\nlines\"", "\"has // and /* in it\"",
+        "// to the end of the line\n", "//", "/* block */", "/* two\nlines */", "/* outer /* inner */ still */",
+        "/**/", "/*/", "*/",
+        "@", "#", "\u00e9", "\"",
+    };
+
+    private static String randomSource(Random random, int pieces) {
+        StringBuilder source = new StringBuilder();
+        for(int i = 0; i < pieces; ++i) {
+            source.append(fragments[random.nextInt(fragments.length)]);
+            if(random.nextInt(3) == 0) source.append(' ');
+        }
+
+        return source.toString();
+    }
+
+    // random pieces around strings and comments that are longer than a chunk of ParallelScanner, so chunks start
+    // inside of them and have to be scanned again, and the strings have what looks like comments in them (and the
+    // comments quotes) so a guess that isn't thrown away shows up in the tokens
+    private static String largeSource(Random random) {
+        StringBuilder source = new StringBuilder();
+        int spans = 2 + random.nextInt(4);
+
+        for(int i = 0; i < spans; ++i) {
+            while(source.length() < (i + 1) * ParallelScanner.MIN_CHUNK * 2) {
+                source.append(randomSource(random, 20)).append('\n');
+            }
+
+            int length = ParallelScanner.MIN_CHUNK + random.nextInt(ParallelScanner.MIN_CHUNK * 2);
+            boolean string = random.nextBoolean();
+            source.append(string ? "\"" : "/* /* nested */ ");
+            for(int start = source.length(); source.length() - start < length; ) {
+                source.append(string ? "// not a comment /* nor this\n" : "\"not a string\" var x = 1; @\n");
+            }
+
+            source.append(string ? "\"" : "*/");
+        }
+
+        switch(random.nextInt(3)) {                                 // and maybe leave one open at the end
+            case 0: source.append("\n\"never closed\n"); break;
+            case 1: source.append("\n/* never closed\n"); break;
+            default: source.append(randomSource(random, 20)); break;
+        }
+
+        return source.toString();
+    }
+
+    // about size characters, with comments making up roughly the given share of the lines
+    private static String repeated(Random random, double comments, int size) {
+        StringBuilder source = new StringBuilder(size + 256);
+        while(source.length() < size) {
+            double roll = random.nextDouble();
+            if(roll < comments / 2) {
+                source.append("// a line comment that goes on for a while, like the ones explaining things do\n");
+            } else if(roll < comments) {
+                source.append("/* a block comment\n   over a couple of lines */\n");
+            } else {
+                source.append("var total = counter * 3.5 + (other - 12) / 4; print \"total \" + total;\n");
+            }
+        }
+
+        return source.toString();
+    }
+
+    // the tokens (with their lines and values) and the errors reported, as one string to compare
+    private static String scanned(String source, Function<String, List<Token>> scan) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Lox.enter(new Lox.Context(new PrintStream(errors, true)));
+
+        try {
+            List<Token> tokens = scan.apply(source);
+            StringBuilder result = new StringBuilder();
+            for(Token token : tokens) {
+                result.append(token.line).append(' ').append(token.type).append(' ').append(quoted(token.lexeme))
+                      .append(' ').append(Objects.toString(token.literal)).append('\n');
+            }
+
+            return result.append(errors).toString();
+        } finally {
+            Lox.leave();
+        }
+    }
+
+    private static String quoted(String text) {
+        return '"' + text.replace("\n", "\\n").replace("\t", "\\t").replace("\r", "\\r") + '"';
+    }
+
+    private static void benchmark(String name, String source, Function<String, List<Token>> scanner,
+                                  Function<String, List<Token>> table, Function<String, List<Token>> parallel) {
+        for(int round = 0; round < 5; ++round) {
+            long start = System.nanoTime();
+            long sink = scanner.apply(source).size();
+            long sequential = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += table.apply(source).size();
+            long tabled = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += parallel.apply(source).size();
+            long split = System.nanoTime() - start;
+
+            double megabytes = source.length() / 1e6;
+            System.out.printf("%s, %.1f MB: Scanner %.0f MB/s, TableScanner %.0f MB/s, ParallelScanner %.0f MB/s (%d)%n",
+                              name, megabytes, megabytes * 1e9 / sequential, megabytes * 1e9 / tabled,
+                              megabytes * 1e9 / split, sink);
+        }
+    }
+
+    static class ScanError {
+        final int line;
+        final String message;
+
+        ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+}
@@ -15,13 +15,31 @@ public class GenerateAst {
         }
 
         String outputDir = args[0];
+        // anything after a | isn't part of the constructor, it's filled in later by the Resolver
         defineAst(outputDir, "Expr", Arrays.asList(
+                "Assign     :   Token name, Expr value | int depth, int slot",
                 "Ternary    :   Expr condition, Expr left, Expr right",
                 "Binary     :   Expr left, Token operator, Expr right",
+                "Call       :   Expr callee, Token paren, List<Expr> arguments",
+                "Get        :   Expr object, Token name | PropertyCache cache",
                 "Grouping   :   Expr expression",
                 "Literal    :   Object value",
+                "Set        :   Expr object, Token name, Expr value | PropertyCache cache",
+                "Super      :   Token keyword, Token method | int depth, int slot, PropertyCache cache",
+                "This       :   Token keyword | int depth, int slot",
                 "Unary      :   Token operator, Expr right",
-                "Exit       :   Token exit"    // the way it's structured rn, each Expr needs a token, so I'm giving it the actual exit call
+                "Exit       :   Token exit",    // the way it's structured rn, each Expr needs a token, so I'm giving it the actual exit call
+                "Variable   :   Token name | int depth, int slot"
+        ));
+
+        defineAst(outputDir, "Stmt", Arrays.asList(
+                "Block      :   List<Stmt> statements | int slots, boolean pooled",
+                "Class      :   Token name, Expr.Variable superclass, List<Stmt.Function> methods | int depth, int slot",
+                "Expression :   Expr expression",
+                "Function   :   Token name, List<Token> params, List<Stmt> body | int depth, int slot, int slots, boolean pooled",
+                "Print      :   Expr expression",
+                "Return     :   Token keyword, Expr value",
+                "Var        :   Token name, Expr initializer | int depth, int slot"
         ));
     }
 
@@ -67,11 +85,21 @@ public class GenerateAst {
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
         writer.println("    static class " + className + " extends " + baseName + " {");
 
+        String[] resolved = new String[0];                                                      // split off the resolver's fields
+        if(fieldList.contains("|")) {
+            resolved = fieldList.split("\\|")[1].trim().split(", ");
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
+
         String[] fields = fieldList.split(", ");                                          // define fields
         for (String field : fields) {
             writer.println("        final " + field + ";");
         }
 
+        for(String field : resolved) {
+            writer.println("        " + field + ";");
+        }
+
         writer.println();
         writer.println("        " + className + "(" + fieldList + ") {" );                      // constructor
 